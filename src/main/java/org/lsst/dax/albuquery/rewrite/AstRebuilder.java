@@ -22,6 +22,7 @@
 
 package org.lsst.dax.albuquery.rewrite;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -29,6 +30,14 @@ import java.util.stream.Collectors;
 import com.facebook.presto.sql.tree.*;
 import com.facebook.presto.sql.tree.Window;
 
+/**
+ * Rebuilds a tree from the results of visiting its nodes. Subclasses
+ * override the visit methods for the nodes they replace.
+ *
+ * The rebuild is copy-on-write: a node is only recreated when one of its
+ * children was replaced, otherwise the original instance is returned. A
+ * rewrite touching a few nodes only allocates along their paths to the root.
+ */
 public class AstRebuilder<C>
         extends AstVisitor<Node, C>
 {
@@ -37,17 +46,47 @@ public class AstRebuilder<C>
         return (T) process(node, context);
     }
 
+    /**
+     * Process each item of a list.
+     * @return the original list when no item was replaced
+     */
     public  <T extends Node> List<T> processNodeItems(List<T> nodeItems, C context){
-        return nodeItems.stream()
-                .map(value -> processNode(value, context))
-                .collect(Collectors.toList());
+        List<T> processed = null;
+        for (int i = 0; i < nodeItems.size(); i++) {
+            T item = nodeItems.get(i);
+            T newItem = processNode(item, context);
+            if (processed == null && newItem != item) {
+                processed = new ArrayList<>(nodeItems.size());
+                processed.addAll(nodeItems.subList(0, i));
+            }
+            if (processed != null) {
+                processed.add(newItem);
+            }
+        }
+        return processed == null ? nodeItems : processed;
+    }
+
+    /**
+     * Process an optional node.
+     * @return the original optional when the node wasn't replaced
+     */
+    public <T extends Node> Optional<T> processOptional(Optional<T> node, C context){
+        if (!node.isPresent()) {
+            return node;
+        }
+        T processed = processNode(node.get(), context);
+        return processed == node.get() ? node : Optional.of(processed);
     }
 
     @Override
     public Extract visitExtract(Extract node, C context)
     {
+        Expression expression = processNode(node.getExpression(), context);
+        if (expression == node.getExpression()) {
+            return node;
+        }
         return new Extract(/* node.getLocation().get() */
-                processNode(node.getExpression(), context),
+                expression,
                 node.getField()
         );
     }
@@ -60,8 +99,12 @@ public class AstRebuilder<C>
     @Override
     public Cast visitCast(Cast node, C context)
     {
+        Expression expression = processNode(node.getExpression(), context);
+        if (expression == node.getExpression()) {
+            return node;
+        }
         return new Cast(/* node.getLocation().get() */
-                processNode(node.getExpression(), context),
+                expression,
                 node.getType(),
                 node.isSafe(),
                 node.isTypeOnly()
@@ -71,10 +114,15 @@ public class AstRebuilder<C>
     @Override
     protected ArithmeticBinaryExpression visitArithmeticBinary(ArithmeticBinaryExpression node, C context)
     {
+        Expression left = processNode(node.getLeft(), context);
+        Expression right = processNode(node.getRight(), context);
+        if (left == node.getLeft() && right == node.getRight()) {
+            return node;
+        }
         return new ArithmeticBinaryExpression(/* node.getLocation().get() */
                 node.getType(),
-                processNode(node.getLeft(), context),
-                processNode(node.getRight(), context));
+                left,
+                right);
     }
 
     /*
@@ -87,17 +135,28 @@ public class AstRebuilder<C>
     @Override
     protected BetweenPredicate visitBetweenPredicate(BetweenPredicate node, C context)
     {
+        Expression value = processNode(node.getValue(), context);
+        Expression min = processNode(node.getMin(), context);
+        Expression max = processNode(node.getMax(), context);
+        if (value == node.getValue() && min == node.getMin() && max == node.getMax()) {
+            return node;
+        }
         return new BetweenPredicate(/* node.getLocation().get() */
-                processNode(node.getValue(), context),
-                processNode(node.getMin(), context),
-                processNode(node.getMax(), context));
+                value,
+                min,
+                max);
     }
 
     @Override
     protected CoalesceExpression visitCoalesceExpression(CoalesceExpression node, C context)
     {
+        List<Expression> operands = node.getOperands();
+        List<Expression> processed = processNodeItems(operands, context);
+        if (processed == operands) {
+            return node;
+        }
         return new CoalesceExpression(/* node.getLocation().get() */
-                processNodeItems(node.getOperands(), context));
+                processed);
     }
 
     @Override
@@ -107,34 +166,54 @@ public class AstRebuilder<C>
 
     @Override
     protected AtTimeZone visitAtTimeZone(AtTimeZone node, C context) {
+        Expression value = processNode(node.getValue(), context);
+        Expression timeZone = processNode(node.getTimeZone(), context);
+        if (value == node.getValue() && timeZone == node.getTimeZone()) {
+            return node;
+        }
         return new AtTimeZone(/* node.getLocation().get() */
-                processNode(node.getValue(), context),
-                processNode(node.getTimeZone(), context)
+                value,
+                timeZone
         );
     }
 
     @Override
     protected ArrayConstructor visitArrayConstructor(ArrayConstructor node, C context)
     {
+        List<Expression> values = node.getValues();
+        List<Expression> processed = processNodeItems(values, context);
+        if (processed == values) {
+            return node;
+        }
         return new ArrayConstructor(/* node.getLocation().get() */
-                processNodeItems(node.getValues(), context));
+                processed);
     }
 
     @Override
     protected SubscriptExpression visitSubscriptExpression(SubscriptExpression node, C context)
     {
+        Expression base = processNode(node.getBase(), context);
+        Expression index = processNode(node.getIndex(), context);
+        if (base == node.getBase() && index == node.getIndex()) {
+            return node;
+        }
         return new SubscriptExpression(/* node.getLocation().get() */
-                processNode(node.getBase(), context),
-                processNode(node.getIndex(), context));
+                base,
+                index);
     }
 
     @Override
     protected ComparisonExpression visitComparisonExpression(ComparisonExpression node, C context)
     {
+        Expression left = processNode(node.getLeft(), context);
+        Expression right = processNode(node.getRight(), context);
+        if (left == node.getLeft() && right == node.getRight()) {
+            return node;
+        }
         return new ComparisonExpression(/* node.getLocation().get() */
                 node.getType(),
-                processNode(node.getLeft(), context),
-                processNode(node.getRight(), context));
+                left,
+                right);
     }
 
     @Override
@@ -145,14 +224,11 @@ public class AstRebuilder<C>
     @Override
     protected Query visitQuery(Query node, C context)
     {
-        Optional<With> with = Optional.empty();
-        Optional<OrderBy> orderBy = Optional.empty();
-        if (node.getWith().isPresent()) {
-            with = Optional.of(processNode(node.getWith().get(), context));
-        }
+        Optional<With> with = processOptional(node.getWith(), context);
         QueryBody queryBody = processNode(node.getQueryBody(), context);
-        if (node.getOrderBy().isPresent()) {
-            orderBy = Optional.of(processNode(node.getOrderBy().get(), context));
+        Optional<OrderBy> orderBy = processOptional(node.getOrderBy(), context);
+        if (with == node.getWith() && queryBody == node.getQueryBody() && orderBy == node.getOrderBy()) {
+            return node;
         }
         return new Query(/* node.getLocation().get() */
                 with,
@@ -164,17 +240,26 @@ public class AstRebuilder<C>
     @Override
     protected With visitWith(With node, C context)
     {
+        List<WithQuery> queries = node.getQueries();
+        List<WithQuery> processed = processNodeItems(queries, context);
+        if (processed == queries) {
+            return node;
+        }
         return new With(/* node.getLocation().get() */
                 node.isRecursive(),
-                processNodeItems(node.getQueries(), context));
+                processed);
     }
 
     @Override
     protected WithQuery visitWithQuery(WithQuery node, C context)
     {
+        Query query = processNode(node.getQuery(), context);
+        if (query == node.getQuery()) {
+            return node;
+        }
         return new WithQuery(/* node.getLocation().get() */
                 node.getName(),
-                processNode(node.getQuery(), context),
+                query,
                 node.getColumnNames()
                 );
     }
@@ -182,9 +267,14 @@ public class AstRebuilder<C>
     @Override
     protected Select visitSelect(Select node, C context)
     {
+        List<SelectItem> selectItems = node.getSelectItems();
+        List<SelectItem> processed = processNodeItems(selectItems, context);
+        if (processed == selectItems) {
+            return node;
+        }
         return new Select(/* node.getLocation().get() */
                 node.isDistinct(),
-                processNodeItems(node.getSelectItems(), context));
+                processed);
     }
 
     /*
@@ -204,57 +294,67 @@ public class AstRebuilder<C>
     }
      */
 
+    @Override
+    protected Node visitTable(Table node, C context)
+    {
+        return node;
+    }
+
     @Override
     protected SingleColumn visitSingleColumn(SingleColumn node, C context)
     {
+        Expression expression = processNode(node.getExpression(), context);
+        if (expression == node.getExpression()) {
+            return node;
+        }
         return new SingleColumn(/* node.getLocation().get() */
-                processNode(node.getExpression(), context),
+                expression,
                 node.getAlias());
     }
 
     @Override
     protected AllColumns visitAllColumns(AllColumns node, C context)
     {
-        if(node.getPrefix().isPresent()){
-            return new AllColumns(node.getPrefix().get());
-        }
-        return new AllColumns();
+        return node;
     }
 
     @Override
     protected WhenClause visitWhenClause(WhenClause node, C context)
     {
+        Expression operand = processNode(node.getOperand(), context);
+        Expression result = processNode(node.getResult(), context);
+        if (operand == node.getOperand() && result == node.getResult()) {
+            return node;
+        }
         return new WhenClause(/* node.getLocation().get() */
-            processNode(node.getOperand(), context),
-            processNode(node.getResult(), context));
+            operand,
+            result);
     }
 
     @Override
     protected InPredicate visitInPredicate(InPredicate node, C context)
     {
+        Expression value = processNode(node.getValue(), context);
+        Expression valueList = processNode(node.getValueList(), context);
+        if (value == node.getValue() && valueList == node.getValueList()) {
+            return node;
+        }
         return new InPredicate(/* node.getLocation().get() */
-            processNode(node.getValue(), context),
-            processNode(node.getValueList(), context));
+            value,
+            valueList);
     }
 
     @Override
     protected FunctionCall visitFunctionCall(FunctionCall node, C context)
     {
         List<Expression> arguments = processNodeItems(node.getArguments(), context);
-        Optional<OrderBy> orderBy = Optional.empty();
-        Optional<Window> window = Optional.empty();
-        Optional<Expression> filter = Optional.empty();
-
-        if (node.getOrderBy().isPresent()) {
-            orderBy = Optional.of(processNode(node.getOrderBy().get(), context));
-        }
+        Optional<OrderBy> orderBy = processOptional(node.getOrderBy(), context);
+        Optional<Window> window = processOptional(node.getWindow(), context);
+        Optional<Expression> filter = processOptional(node.getFilter(), context);
 
-        if (node.getWindow().isPresent()) {
-            window = Optional.of(processNode(node.getWindow().get(), context));
-        }
-
-        if (node.getFilter().isPresent()) {
-            filter = Optional.of(processNode(node.getFilter().get(), context));
+        if (arguments == node.getArguments() && orderBy == node.getOrderBy()
+                && window == node.getWindow() && filter == node.getFilter()) {
+            return node;
         }
         return new FunctionCall(/* node.getLocation().get() */
                 node.getName(),
@@ -268,21 +368,26 @@ public class AstRebuilder<C>
     @Override
     protected GroupingOperation visitGroupingOperation(GroupingOperation node, C context)
     {
-        List<DereferenceExpression> columnArguments = node.getGroupingColumns().stream()
-                .map(value -> processNode((DereferenceExpression) value, context))
-                .collect(Collectors.toList());
-
+        List<Expression> groupingColumns = node.getGroupingColumns();
+        List<Expression> processed = processNodeItems(groupingColumns, context);
+        if (processed == groupingColumns) {
+            return node;
+        }
         return new GroupingOperation(node.getLocation(),
-                columnArguments.stream()
-                        .map(DereferenceExpression::getQualifiedName)
+                processed.stream()
+                        .map(value -> ((DereferenceExpression) value).getQualifiedName())
                         .collect(Collectors.toList()));
     }
 
     @Override
     protected DereferenceExpression visitDereferenceExpression(DereferenceExpression node, C context)
     {
+        Expression base = processNode(node.getBase(), context);
+        if (base == node.getBase()) {
+            return node;
+        }
         return new DereferenceExpression(/* node.getLocation().get() */
-                processNode(node.getBase(), context),
+                base,
                 node.getField());
     }
 
@@ -290,18 +395,13 @@ public class AstRebuilder<C>
     public Window visitWindow(Window node, C context)
     {
         List<Expression> partitionBys = processNodeItems(node.getPartitionBy(), context);
+        Optional<OrderBy> orderBy = processOptional(node.getOrderBy(), context);
+        Optional<WindowFrame> windowFrame = processOptional(node.getFrame(), context);
 
-        Optional<OrderBy> orderBy = Optional.empty();
-        Optional<WindowFrame> windowFrame = Optional.empty();
-
-        if (node.getOrderBy().isPresent()) {
-            orderBy = Optional.of(processNode(node.getOrderBy().get(), context));
+        if (partitionBys == node.getPartitionBy() && orderBy == node.getOrderBy()
+                && windowFrame == node.getFrame()) {
+            return node;
         }
-
-        if (node.getFrame().isPresent()) {
-            windowFrame = Optional.of(processNode(node.getFrame().get(), context));
-        }
-
         return new Window(/* node.getLocation().get() */
                 partitionBys,
                 orderBy,
@@ -311,25 +411,24 @@ public class AstRebuilder<C>
     @Override
     public  WindowFrame visitWindowFrame(WindowFrame node, C context)
     {
-        Optional<FrameBound> end = Optional.empty();
-        if (node.getEnd().isPresent()) {
-            end = Optional.of(processNode(node.getEnd().get(), context));
+        FrameBound start = processNode(node.getStart(), context);
+        Optional<FrameBound> end = processOptional(node.getEnd(), context);
+        if (start == node.getStart() && end == node.getEnd()) {
+            return node;
         }
         return new WindowFrame(/* node.getLocation().get() */
                 node.getType(),
-                processNode(node.getStart(), context),
+                start,
                 end);
     }
 
     @Override
     public  FrameBound visitFrameBound(FrameBound node, C context)
     {
-
-        Optional<Expression> value = Optional.empty();
-        if (node.getValue().isPresent()) {
-            value = Optional.of(processNode(node.getValue().get(), context));
+        Optional<Expression> value = processOptional(node.getValue(), context);
+        if (value == node.getValue()) {
+            return node;
         }
-
         return new FrameBound(/* node.getLocation().get() */
                 node.getType(),
                 value.orElse(null),
@@ -342,11 +441,12 @@ public class AstRebuilder<C>
 
         Expression operand = processNode(node.getOperand(), context);
         List<WhenClause> whenClauses = processNodeItems(node.getWhenClauses(), context);
-        Optional<Expression> defaultValue = Optional.empty();
-        if (node.getDefaultValue().isPresent()) {
-            defaultValue = Optional.of(processNode(node.getDefaultValue().get(), context));
-        }
+        Optional<Expression> defaultValue = processOptional(node.getDefaultValue(), context);
 
+        if (operand == node.getOperand() && whenClauses == node.getWhenClauses()
+                && defaultValue == node.getDefaultValue()) {
+            return node;
+        }
         return new SimpleCaseExpression(/* node.getLocation().get() */
                 operand,
                 whenClauses,
@@ -356,66 +456,100 @@ public class AstRebuilder<C>
     @Override
     protected InListExpression visitInListExpression(InListExpression node, C context)
     {
+        List<Expression> values = node.getValues();
+        List<Expression> processed = processNodeItems(values, context);
+        if (processed == values) {
+            return node;
+        }
         return new InListExpression(/* node.getLocation().get() */
-                processNodeItems(node.getValues(), context));
+                processed);
     }
 
     @Override
     protected NullIfExpression visitNullIfExpression(NullIfExpression node, C context)
     {
+        Expression first = processNode(node.getFirst(), context);
+        Expression second = processNode(node.getSecond(), context);
+        if (first == node.getFirst() && second == node.getSecond()) {
+            return node;
+        }
         return new NullIfExpression(/* node.getLocation().get() */
-            processNode(node.getFirst(), context),
-            processNode(node.getSecond(), context));
+            first,
+            second);
     }
 
     @Override
     protected IfExpression visitIfExpression(IfExpression node, C context)
     {
+        Expression condition = processNode(node.getCondition(), context);
+        Expression trueValue = processNode(node.getTrueValue(), context);
+        Optional<Expression> falseValue = processOptional(node.getFalseValue(), context);
+        if (condition == node.getCondition() && trueValue == node.getTrueValue()
+                && falseValue == node.getFalseValue()) {
+            return node;
+        }
         return new IfExpression(/* node.getLocation().get() */
-                processNode(node.getCondition(), context),
-                processNode(node.getTrueValue(), context),
-                node.getFalseValue().isPresent() ? processNode(node.getFalseValue().get(), context) : null
+                condition,
+                trueValue,
+                falseValue.orElse(null)
                 );
     }
 
     @Override
     protected TryExpression visitTryExpression(TryExpression node, C context)
     {
+        Expression innerExpression = processNode(node.getInnerExpression(), context);
+        if (innerExpression == node.getInnerExpression()) {
+            return node;
+        }
         return new TryExpression(/* node.getLocation().get() */
-                processNode(node.getInnerExpression(), context));
+                innerExpression);
 
     }
 
     @Override
     protected BindExpression visitBindExpression(BindExpression node, C context)
     {
+        List<Expression> values = processNodeItems(node.getValues(), context);
+        Expression function = processNode(node.getFunction(), context);
+        if (values == node.getValues() && function == node.getFunction()) {
+            return node;
+        }
         return new BindExpression(/* node.getLocation().get() */
-                processNodeItems(node.getValues(), context),
-                processNode(node.getFunction(), context));
+                values,
+                function);
     }
 
     @Override
     protected ArithmeticUnaryExpression visitArithmeticUnary(ArithmeticUnaryExpression node, C context)
     {
+        Expression value = processNode(node.getValue(), context);
+        if (value == node.getValue()) {
+            return node;
+        }
         return new ArithmeticUnaryExpression(/* node.getLocation().get() */
                 node.getSign(),
-                processNode(node.getValue(), context));
+                value);
     }
 
     @Override
     protected NotExpression visitNotExpression(NotExpression node, C context)
     {
+        Expression value = processNode(node.getValue(), context);
+        if (value == node.getValue()) {
+            return node;
+        }
         return new NotExpression(/* node.getLocation().get() */
-                processNode(node.getValue(), context));
+                value);
     }
 
     @Override
     protected SearchedCaseExpression visitSearchedCaseExpression(SearchedCaseExpression node, C context)
     {
         List<WhenClause> whenClauses = processNodeItems(node.getWhenClauses(), context);
-        Optional<Expression> defaultValue = Optional.empty();
-        if(node.getDefaultValue().isPresent()){
-            defaultValue = Optional.of(processNode(node.getDefaultValue().get(), context));
+        Optional<Expression> defaultValue = processOptional(node.getDefaultValue(), context);
+        if (whenClauses == node.getWhenClauses() && defaultValue == node.getDefaultValue()) {
+            return node;
         }
         return new SearchedCaseExpression(/* node.getLocation().get() */
                 whenClauses,
@@ -425,54 +559,86 @@ public class AstRebuilder<C>
     @Override
     protected LikePredicate visitLikePredicate(LikePredicate node, C context)
     {
+        Expression value = processNode(node.getValue(), context);
+        Expression pattern = processNode(node.getPattern(), context);
+        Expression escape = node.getEscape() != null ? processNode(node.getEscape(), context) : null;
+        if (value == node.getValue() && pattern == node.getPattern() && escape == node.getEscape()) {
+            return node;
+        }
         return new LikePredicate(/* node.getLocation().get() */
-            processNode(node.getValue(), context),
-            processNode(node.getPattern(), context),
-            node.getEscape() != null ? processNode(node.getEscape(), context) : null);
+            value,
+            pattern,
+            escape);
     }
 
     @Override
     protected IsNotNullPredicate visitIsNotNullPredicate(IsNotNullPredicate node, C context)
     {
+        Expression value = processNode(node.getValue(), context);
+        if (value == node.getValue()) {
+            return node;
+        }
         return new IsNotNullPredicate(/* node.getLocation().get() */
-                processNode(node.getValue(), context));
+                value);
     }
 
     @Override
     protected IsNullPredicate visitIsNullPredicate(IsNullPredicate node, C context)
     {
+        Expression value = processNode(node.getValue(), context);
+        if (value == node.getValue()) {
+            return node;
+        }
         return new IsNullPredicate(/* node.getLocation().get() */
-                processNode(node.getValue(), context));
+                value);
     }
 
     @Override
     protected LogicalBinaryExpression visitLogicalBinaryExpression(LogicalBinaryExpression node, C context)
     {
+        Expression left = processNode(node.getLeft(), context);
+        Expression right = processNode(node.getRight(), context);
+        if (left == node.getLeft() && right == node.getRight()) {
+            return node;
+        }
         return new LogicalBinaryExpression(/* node.getLocation().get() */
             node.getType(),
-            processNode(node.getLeft(), context),
-            processNode(node.getRight(), context));
+            left,
+            right);
     }
 
     @Override
     protected SubqueryExpression visitSubqueryExpression(SubqueryExpression node, C context)
     {
+        Query query = processNode(node.getQuery(), context);
+        if (query == node.getQuery()) {
+            return node;
+        }
         return new SubqueryExpression(/* node.getLocation().get() */
-                processNode(node.getQuery(), context));
+                query);
     }
 
     @Override
     protected OrderBy visitOrderBy(OrderBy node, C context)
     {
+        List<SortItem> sortItems = node.getSortItems();
+        List<SortItem> processed = processNodeItems(sortItems, context);
+        if (processed == sortItems) {
+            return node;
+        }
         return new OrderBy(/* node.getLocation().get() */
-                processNodeItems(node.getSortItems(), context));
+                processed);
     }
 
     @Override
     protected SortItem visitSortItem(SortItem node, C context)
     {
+        Expression sortKey = processNode(node.getSortKey(), context);
+        if (sortKey == node.getSortKey()) {
+            return node;
+        }
         return new SortItem(/* node.getLocation().get() */
-                processNode(node.getSortKey(), context),
+                sortKey,
                 node.getOrdering(),
                 node.getNullOrdering());
     }
@@ -481,26 +647,15 @@ public class AstRebuilder<C>
     protected QuerySpecification visitQuerySpecification(QuerySpecification node, C context)
     {
         Select select = processNode(node.getSelect(), context);
-        Optional<Relation> from = Optional.empty();
-        Optional<Expression> where = Optional.empty();
-        Optional<GroupBy> groupBy = Optional.empty();
-        Optional<Expression> having = Optional.empty();
-        Optional<OrderBy> orderBy = Optional.empty();
-
-        if (node.getFrom().isPresent()) {
-            from = Optional.of(processNode(node.getFrom().get(), context));
-        }
-        if (node.getWhere().isPresent()) {
-            where = Optional.of(processNode(node.getWhere().get(), context));
-        }
-        if (node.getGroupBy().isPresent()) {
-            groupBy = Optional.of(processNode(node.getGroupBy().get(), context));
-        }
-        if (node.getHaving().isPresent()) {
-            having = Optional.of(processNode(node.getHaving().get(), context));
-        }
-        if (node.getOrderBy().isPresent()) {
-            orderBy = Optional.of(processNode(node.getOrderBy().get(), context));
+        Optional<Relation> from = processOptional(node.getFrom(), context);
+        Optional<Expression> where = processOptional(node.getWhere(), context);
+        Optional<GroupBy> groupBy = processOptional(node.getGroupBy(), context);
+        Optional<Expression> having = processOptional(node.getHaving(), context);
+        Optional<OrderBy> orderBy = processOptional(node.getOrderBy(), context);
+
+        if (select == node.getSelect() && from == node.getFrom() && where == node.getWhere()
+                && groupBy == node.getGroupBy() && having == node.getHaving() && orderBy == node.getOrderBy()) {
+            return node;
         }
         return new QuerySpecification(/* node.getLocation().get() */
                 select, from, where,
@@ -510,18 +665,29 @@ public class AstRebuilder<C>
     @Override
     protected SetOperation visitSetOperation(SetOperation node, C context)
     {
+        if(node instanceof Except){
+            Relation left = processNode(((Except) node).getLeft(), context);
+            Relation right = processNode(((Except) node).getRight(), context);
+            if (left == ((Except) node).getLeft() && right == ((Except) node).getRight()) {
+                return node;
+            }
+            return new Except(/* node.getLocation().get() */
+                    left,
+                    right,
+                    node.isDistinct());
+        }
+        List<Relation> relations = node.getRelations();
+        List<Relation> processed = processNodeItems(relations, context);
+        if (processed == relations) {
+            return node;
+        }
         if(node instanceof Union){
             return new Union(/* node.getLocation().get() */
-                    processNodeItems(node.getRelations(), context),
-                    node.isDistinct());
-        } else if (node instanceof Intersect){
-            return new Intersect(/* node.getLocation().get() */
-                    processNodeItems(node.getRelations(), context),
+                    processed,
                     node.isDistinct());
         } else {
-            return new Except(/* node.getLocation().get() */
-                    processNode(((Except) node).getLeft(), context),
-                    processNode(((Except) node).getRight(), context),
+            return new Intersect(/* node.getLocation().get() */
+                    processed,
                     node.isDistinct());
         }
     }
@@ -546,29 +712,47 @@ public class AstRebuilder<C>
     @Override
     protected Values visitValues(Values node, C context)
     {
+        List<Expression> rows = node.getRows();
+        List<Expression> processed = processNodeItems(rows, context);
+        if (processed == rows) {
+            return node;
+        }
         return new Values(/* node.getLocation().get() */
-                processNodeItems(node.getRows(), context));
+                processed);
     }
 
     @Override
     protected Row visitRow(Row node, C context)
     {
+        List<Expression> items = node.getItems();
+        List<Expression> processed = processNodeItems(items, context);
+        if (processed == items) {
+            return node;
+        }
         return new Row(/* node.getLocation().get() */
-                processNodeItems(node.getItems(), context));
+                processed);
     }
 
     @Override
     protected TableSubquery visitTableSubquery(TableSubquery node, C context)
     {
+        Query query = processNode(node.getQuery(), context);
+        if (query == node.getQuery()) {
+            return node;
+        }
         return new TableSubquery(/* node.getLocation().get() */
-                processNode(node.getQuery(), context));
+                query);
     }
 
     @Override
     protected AliasedRelation visitAliasedRelation(AliasedRelation node, C context)
     {
+        Relation relation = processNode(node.getRelation(), context);
+        if (relation == node.getRelation()) {
+            return node;
+        }
         return new AliasedRelation(/* node.getLocation().get() */
-                processNode(node.getRelation(), context),
+                relation,
                 node.getAlias(),
                 node.getColumnNames());
     }
@@ -576,10 +760,15 @@ public class AstRebuilder<C>
     @Override
     protected SampledRelation visitSampledRelation(SampledRelation node, C context)
     {
+        Relation relation = processNode(node.getRelation(), context);
+        Expression samplePercentage = processNode(node.getSamplePercentage(), context);
+        if (relation == node.getRelation() && samplePercentage == node.getSamplePercentage()) {
+            return node;
+        }
         return new SampledRelation(/* node.getLocation().get() */
-            processNode(node.getRelation(), context),
+            relation,
             node.getType(),
-            processNode(node.getSamplePercentage(), context));
+            samplePercentage);
     }
 
     @Override
@@ -588,19 +777,19 @@ public class AstRebuilder<C>
 
         Relation left = processNode(node.getLeft(), context);
         Relation right = processNode(node.getRight(), context);
-        Optional<JoinCriteria> joinCriteria = Optional.empty();
-
-        if (node.getCriteria().isPresent()) {
-            JoinCriteria oldJoin = node.getCriteria().get();
-            if (oldJoin instanceof JoinOn) {
-                joinCriteria = Optional.of(new JoinOn(processNode(((JoinOn) oldJoin).getExpression(), context)));
-            } else if (oldJoin instanceof JoinUsing) {
-                joinCriteria = Optional.of(new JoinUsing(((JoinUsing) oldJoin).getColumns()));
-            } else if (oldJoin instanceof NaturalJoin) {
-                joinCriteria = Optional.of(oldJoin);
+        Optional<JoinCriteria> joinCriteria = node.getCriteria();
+
+        if (joinCriteria.isPresent() && joinCriteria.get() instanceof JoinOn) {
+            Expression expression = ((JoinOn) joinCriteria.get()).getExpression();
+            Expression processed = processNode(expression, context);
+            if (processed != expression) {
+                joinCriteria = Optional.of(new JoinOn(processed));
             }
         }
 
+        if (left == node.getLeft() && right == node.getRight() && joinCriteria == node.getCriteria()) {
+            return node;
+        }
         return new Join(/* node.getLocation().get() */
                 node.getType(),
                 left,
@@ -611,25 +800,40 @@ public class AstRebuilder<C>
     @Override
     protected Unnest visitUnnest(Unnest node, C context)
     {
+        List<Expression> expressions = node.getExpressions();
+        List<Expression> processed = processNodeItems(expressions, context);
+        if (processed == expressions) {
+            return node;
+        }
         return new Unnest(/* node.getLocation().get() */
-                processNodeItems(node.getExpressions(), context),
+                processed,
                 node.isWithOrdinality());
     }
 
     @Override
     protected GroupBy visitGroupBy(GroupBy node, C context)
     {
+        List<GroupingElement> groupingElements = node.getGroupingElements();
+        List<GroupingElement> processed = processNodeItems(groupingElements, context);
+        if (processed == groupingElements) {
+            return node;
+        }
         return new GroupBy(/* node.getLocation().get() */
                 node.isDistinct(),
-                processNodeItems(node.getGroupingElements(), context));
+                processed);
     }
 
     @Override
     protected GroupingElement visitGroupingElement(GroupingElement node, C context)
     {
         if(node instanceof SimpleGroupBy){
+            List<Expression> columnExpressions = ((SimpleGroupBy) node).getColumnExpressions();
+            List<Expression> processed = processNodeItems(columnExpressions, context);
+            if (processed == columnExpressions) {
+                return node;
+            }
             return new SimpleGroupBy(/* node.getLocation().get() */
-                    processNodeItems(((SimpleGroupBy) node).getColumnExpressions(), context));
+                    processed);
         }
         // FIXME: Fix for Rollup, Cube, and GroupingSets
         return node;
@@ -638,27 +842,41 @@ public class AstRebuilder<C>
     @Override
     protected Insert visitInsert(Insert node, C context)
     {
+        Query query = processNode(node.getQuery(), context);
+        if (query == node.getQuery()) {
+            return node;
+        }
         return new Insert(node.getTarget(),
                 node.getColumns(),
-                processNode(node.getQuery(), context));
+                query);
     }
 
     @Override
     protected Delete visitDelete(Delete node, C context)
     {
+        Table table = processNode(node.getTable(), context);
+        Optional<Expression> where = processOptional(node.getWhere(), context);
+        if (table == node.getTable() && where == node.getWhere()) {
+            return node;
+        }
         return new Delete(/* node.getLocation().get() */
-                processNode(node.getTable(), context),
-                node.getWhere().map(where -> processNode(where, context)));
+                table,
+                where);
     }
 
     @Override
     protected CreateTableAsSelect visitCreateTableAsSelect(CreateTableAsSelect node, C context)
     {
+        Query query = processNode(node.getQuery(), context);
+        List<Property> properties = processNodeItems(node.getProperties(), context);
+        if (query == node.getQuery() && properties == node.getProperties()) {
+            return node;
+        }
         return new CreateTableAsSelect(/* node.getLocation().get() */
                 node.getName(),
-                processNode(node.getQuery(), context),
+                query,
                 node.isNotExists(),
-                processNodeItems(node.getProperties(), context),
+                properties,
                 node.isWithData(),
                 node.getColumnAliases(),
                 node.getComment()
@@ -668,46 +886,68 @@ public class AstRebuilder<C>
     @Override
     protected Property visitProperty(Property node, C context)
     {
+        Identifier name = processNode(node.getName(), context);
+        Expression value = processNode(node.getValue(), context);
+        if (name == node.getName() && value == node.getValue()) {
+            return node;
+        }
         return new Property(/* node.getLocation().get() */
-            processNode(node.getName(), context),
-            processNode(node.getValue(), context));
+            name,
+            value);
     }
 
     @Override
     protected CreateView visitCreateView(CreateView node, C context)
     {
+        Query query = processNode(node.getQuery(), context);
+        if (query == node.getQuery()) {
+            return node;
+        }
         return new CreateView(/* node.getLocation().get() */
             node.getName(),
-            processNode(node.getQuery(), context),
+            query,
             node.isReplace());
     }
 
     @Override
     protected SetSession visitSetSession(SetSession node, C context)
     {
+        Expression value = processNode(node.getValue(), context);
+        if (value == node.getValue()) {
+            return node;
+        }
         return new SetSession(/* node.getLocation().get() */
                 node.getName(),
-                processNode(node.getValue(), context)
+                value
                 );
     }
 
     @Override
     protected AddColumn visitAddColumn(AddColumn node, C context)
     {
+        ColumnDefinition column = processNode(node.getColumn(), context);
+        if (column == node.getColumn()) {
+            return node;
+        }
         return new AddColumn(/* node.getLocation().get() */
                 node.getName(),
-                processNode(node.getColumn(), context)
+                column
                 );
     }
 
     @Override
     protected CreateTable visitCreateTable(CreateTable node, C context)
     {
+        List<TableElement> elements = processNodeItems(node.getElements(), context);
+        List<Property> properties = processNodeItems(node.getProperties(), context);
+        if (elements == node.getElements() && properties == node.getProperties()) {
+            return node;
+        }
         return new CreateTable(/* node.getLocation().get() */
                 node.getName(),
-                processNodeItems(node.getElements(), context),
+                elements,
                 node.isNotExists(),
-                processNodeItems(node.getProperties(), context),
+                properties,
                 node.getComment()
                 );
     }
@@ -715,10 +955,15 @@ public class AstRebuilder<C>
     @Override
     protected ShowPartitions visitShowPartitions(ShowPartitions node, C context)
     {
+        Optional<Expression> where = processOptional(node.getWhere(), context);
+        List<SortItem> orderBy = processNodeItems(node.getOrderBy(), context);
+        if (where == node.getWhere() && orderBy == node.getOrderBy()) {
+            return node;
+        }
         return new ShowPartitions(/* node.getLocation().get() */
                 node.getTable(),
-                node.getWhere().map(where -> processNode(where, context)),
-                processNodeItems(node.getOrderBy(), context),
+                where,
+                orderBy,
                 node.getLimit()
                 );
     }
@@ -726,43 +971,65 @@ public class AstRebuilder<C>
     @Override
     protected StartTransaction visitStartTransaction(StartTransaction node, C context)
     {
+        List<TransactionMode> transactionModes = node.getTransactionModes();
+        List<TransactionMode> processed = processNodeItems(transactionModes, context);
+        if (processed == transactionModes) {
+            return node;
+        }
         return new StartTransaction(/* node.getLocation().get() */
-                processNodeItems(node.getTransactionModes(), context));
+                processed);
     }
 
     @Override
     protected Explain visitExplain(Explain node, C context)
     {
+        Statement statement = processNode(node.getStatement(), context);
+        List<ExplainOption> options = processNodeItems(node.getOptions(), context);
+        if (statement == node.getStatement() && options == node.getOptions()) {
+            return node;
+        }
         return new Explain(/* node.getLocation().get() */
-                processNode(node.getStatement(), context),
+                statement,
                 node.isAnalyze(),
                 node.isVerbose(),
-                processNodeItems(node.getOptions(), context));
+                options);
     }
 
     @Override
     protected QuantifiedComparisonExpression visitQuantifiedComparisonExpression(QuantifiedComparisonExpression node, C context)
     {
+        Expression value = processNode(node.getValue(), context);
+        Expression subquery = processNode(node.getSubquery(), context);
+        if (value == node.getValue() && subquery == node.getSubquery()) {
+            return node;
+        }
         return new QuantifiedComparisonExpression(/* node.getLocation().get() */
             node.getComparisonType(),
             node.getQuantifier(),
-            processNode(node.getValue(), context),
-            processNode(node.getSubquery(), context));
+            value,
+            subquery);
     }
 
     @Override
     protected ExistsPredicate visitExists(ExistsPredicate node, C context)
     {
-
+        Expression subquery = processNode((Expression) node.getSubquery(), context);
+        if (subquery == node.getSubquery()) {
+            return node;
+        }
         return new ExistsPredicate(/* node.getLocation().get() */
-                processNode((Expression) node.getSubquery(), context));
+                subquery);
     }
 
     @Override
     protected Lateral visitLateral(Lateral node, C context)
     {
+        Query query = processNode(node.getQuery(), context);
+        if (query == node.getQuery()) {
+            return node;
+        }
         return new Lateral(/* node.getLocation().get() */
-                processNode(node.getQuery(), context));
+                query);
     }
 
     /*
@@ -928,14 +1195,12 @@ public class AstRebuilder<C>
 */
     @Override
     public Node visitShowColumns(ShowColumns node, C context) {
-        QualifiedName table = node.getTable();
-        return new ShowColumns(table);
+        return node;
     }
 
     @Override
     protected Node visitBooleanLiteral(BooleanLiteral node, C context) {
-        String value = String.valueOf(node.getValue());
-        return new BooleanLiteral(value);
+        return node;
     }
 
     /*
@@ -22,27 +22,57 @@
 
 package org.lsst.dax.albuquery
 
+import com.codahale.metrics.MetricRegistry
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.fasterxml.jackson.module.kotlin.KotlinModule
 import io.dropwizard.Application
 import io.dropwizard.jdbi3.JdbiFactory
 import io.dropwizard.setup.Bootstrap
 import io.dropwizard.setup.Environment
+import org.jdbi.v3.core.Jdbi
 import org.jdbi.v3.core.kotlin.KotlinPlugin
+import org.jdbi.v3.sqlobject.SqlObjectPlugin
+import org.jdbi.v3.sqlobject.kotlin.KotlinSqlObjectPlugin
+import org.lsst.dax.albuquery.dao.HistoryDAO
+import org.lsst.dax.albuquery.dao.MetaservCache
 import org.lsst.dax.albuquery.dao.MetaservDAO
 import org.lsst.dax.albuquery.resources.Async
+import org.lsst.dax.albuquery.resources.FileRegionWriter
 import org.lsst.dax.albuquery.resources.Sync
+import org.lsst.dax.albuquery.results.SqliteResult
+import org.lsst.dax.albuquery.tasks.InvalidateMetaservCacheTask
+import org.lsst.dax.albuquery.tasks.JobStore
+import org.lsst.dax.albuquery.tasks.QueryScheduler
+import org.lsst.dax.albuquery.tasks.ResultReaper
+import org.slf4j.LoggerFactory
 import java.nio.file.Files
+import java.nio.file.Paths
 import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
 import javax.ws.rs.ext.ContextResolver
 
-val EXECUTOR = Executors.newCachedThreadPool()
+val RESULT_WRITER_EXECUTOR = Executors.newCachedThreadPool()
+val QUERY_SETUP_EXECUTOR = Executors.newCachedThreadPool()
+// Writes responses which waited for a query to finish
+val RESPONSE_EXECUTOR = Executors.newCachedThreadPool()
+// Enforces the execution duration of queries
+val QUERY_WATCHDOG_EXECUTOR: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor()
+// Sends progress reports of running queries
+val PROGRESS_EXECUTOR: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor()
 var CONFIG: AlbuqueryConfiguration? = null
 lateinit var SERVICE_ACCOUNT_CONNECTIONS: ServiceAccountConnections
+lateinit var MEMORY_GOVERNOR: MemoryGovernor
+lateinit var QUERY_SCHEDULER: QueryScheduler
+lateinit var JOB_STORE: JobStore
+var QUERY_CACHE = QueryCache()
+// Replaced by the environment's registry when the application runs
+var METRICS = MetricRegistry()
 
 class AlbuqueryApplication() : Application<AlbuqueryConfiguration>() {
 
     companion object {
+        private val LOGGER = LoggerFactory.getLogger(AlbuqueryApplication::class.java)
+
         @JvmStatic
         fun main(args: Array<String>) {
             AlbuqueryApplication().run(*args)
@@ -56,21 +86,50 @@ class AlbuqueryApplication() : Application<AlbuqueryConfiguration>() {
 
     override fun run(config: AlbuqueryConfiguration, env: Environment) {
         CONFIG = config
-        SERVICE_ACCOUNT_CONNECTIONS = ServiceAccountConnections(config.DAX_PASSWORD_STORE)
+        METRICS = env.metrics()
+        SERVICE_ACCOUNT_CONNECTIONS = ServiceAccountConnections(config.DAX_PASSWORD_STORE, config.DAX_BACKEND_POOL)
+        env.lifecycle().manage(SERVICE_ACCOUNT_CONNECTIONS)
+        MEMORY_GOVERNOR = MemoryGovernor(config.DAX_MEMORY_BUDGET)
+        MEMORY_GOVERNOR.registerMetrics(METRICS)
         if (CONFIG?.DAX_BASE_PATH == null) {
             val base_path = Files.createTempDirectory("albuquery")
             CONFIG?.DAX_BASE_PATH = base_path.toString()
         }
         println()
         println("TEMP DIR AT " + CONFIG?.DAX_BASE_PATH)
+        // Build the result database template up front, instead of on the first query
+        LOGGER.info("Result database template at {}", SqliteResult.templateDatabase)
+        val basePath = Paths.get(CONFIG?.DAX_BASE_PATH)
+        // Jobs are written from a single thread, WAL lets requests read them meanwhile
+        val historyJdbi = Jdbi.create("jdbc:sqlite:${basePath.resolve(JobStore.JOB_DATABASE)}?journal_mode=WAL")
+        historyJdbi.installPlugin(SqlObjectPlugin())
+        historyJdbi.installPlugin(KotlinPlugin())
+        historyJdbi.installPlugin(KotlinSqlObjectPlugin())
+        JOB_STORE = JobStore(basePath, historyJdbi.onDemand(HistoryDAO::class.java), config.DAX_JOB_STORE)
+        JOB_STORE.registerMetrics(METRICS)
+        // Managed objects stop in reverse order, so jobs are recorded until the last query has finished
+        env.lifecycle().manage(JOB_STORE)
+        QUERY_SCHEDULER = QueryScheduler(config.DAX_MAX_CONCURRENT_QUERIES, config.DAX_MAX_QUERIES_PER_BACKEND)
+        QUERY_SCHEDULER.registerMetrics(METRICS)
+        env.lifecycle().manage(QUERY_SCHEDULER)
+        QUERY_CACHE = QueryCache(config.DAX_QUERY_CACHE)
+        QUERY_CACHE.registerMetrics(METRICS)
+        val resultReaper = ResultReaper(basePath, JOB_STORE, config.DAX_RESULT_QUOTA)
+        resultReaper.registerMetrics(METRICS)
+        env.lifecycle().manage(resultReaper)
         //val healthCheck = TemplateHealthCheck(config.template)
         //env.healthChecks().register("template", healthCheck)
         val factory = JdbiFactory()
         val jdbi = factory.build(env, config.DAX_METASERV_DB, "mysql")
         jdbi.installPlugin(KotlinPlugin())
-        val metaservDAO = jdbi.onDemand(MetaservDAO::class.java)
+        // Allows default methods in the kotlin DAO interfaces
+        jdbi.installPlugin(KotlinSqlObjectPlugin())
+        val metaservDAO = MetaservCache(jdbi.onDemand(MetaservDAO::class.java), config.DAX_METASERV_CACHE)
+        metaservDAO.registerMetrics(METRICS)
+        env.admin().addTask(InvalidateMetaservCacheTask(metaservDAO))
         env.jersey().register(Async(metaservDAO))
         env.jersey().register(Sync(metaservDAO))
+        env.jersey().register(FileRegionWriter())
         env.jersey().register(ContextResolver<ObjectMapper> { ObjectMapper().registerModule(KotlinModule()) })
     }
 }
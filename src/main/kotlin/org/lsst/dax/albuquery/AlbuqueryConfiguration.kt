@@ -33,6 +33,128 @@ data class Credential(
     val password: String?
 )
 
+/*
+* SQLite settings for result databases while they are bulk loaded.
+* Once a result is complete, the database is switched back to a rollback
+* journal with full synchronous writes, analyzed and fsynced.
+*/
+data class ResultDatabaseConfiguration(
+    // One of OFF, MEMORY, WAL, DELETE, TRUNCATE, PERSIST
+    @JsonProperty("journal_mode")
+    val journalMode: String = "OFF",
+
+    // One of OFF, NORMAL, FULL, EXTRA
+    @JsonProperty("synchronous")
+    val synchronous: String = "OFF",
+
+    // Only applied to the result database template, which every result is copied from
+    @JsonProperty("page_size")
+    val pageSize: Int = 16384,
+
+    // Positive values are pages, negative values are KiB
+    @JsonProperty("cache_size")
+    val cacheSize: Int = -65536,
+
+    @JsonProperty("exclusive_locking")
+    val exclusiveLocking: Boolean = true,
+
+    @JsonProperty("analyze")
+    val analyze: Boolean = true
+)
+
+/*
+* Connection pool settings, applied to the pool of each database instance and default schema.
+*/
+data class BackendPoolConfiguration(
+    @JsonProperty("min_idle")
+    val minIdle: Int = 1,
+
+    @JsonProperty("max_idle")
+    val maxIdle: Int = 8,
+
+    @JsonProperty("max_active")
+    val maxActive: Int = 16,
+
+    // How long to wait for a connection when the pool is exhausted
+    @JsonProperty("max_wait_ms")
+    val maxWaitMs: Int = 30_000,
+
+    // Connections older than this are closed instead of being reused
+    @JsonProperty("max_lifetime_ms")
+    val maxLifetimeMs: Long = 30 * 60 * 1000L,
+
+    @JsonProperty("validation_query")
+    val validationQuery: String = "SELECT 1",
+
+    // Connections are validated on borrow at most once per interval
+    @JsonProperty("validation_interval_ms")
+    val validationIntervalMs: Long = 30_000,
+
+    // Connections held longer than this are logged as possible leaks
+    @JsonProperty("leak_detection_seconds")
+    val leakDetectionSeconds: Int = 4 * 60 * 60
+)
+
+/*
+* Cache settings for metadata read from metaserv.
+*/
+data class MetaservCacheConfiguration(
+    // Entries older than this are dropped
+    @JsonProperty("ttl_seconds")
+    val ttlSeconds: Long = 15 * 60,
+
+    // Entries older than this are reloaded in the background
+    @JsonProperty("refresh_seconds")
+    val refreshSeconds: Long = 60,
+
+    // Maximum number of entries in each cache
+    @JsonProperty("maximum_size")
+    val maximumSize: Long = 10_000
+)
+
+/*
+* Cache settings for prepared queries.
+*/
+data class QueryCacheConfiguration(
+    @JsonProperty("ttl_seconds")
+    val ttlSeconds: Long = 15 * 60,
+
+    @JsonProperty("maximum_size")
+    val maximumSize: Long = 1_000
+)
+
+/*
+* Retention of jobs. Finished jobs are kept in memory for a while, and
+* recorded in the job database until they are destroyed.
+*/
+data class JobStoreConfiguration(
+    @JsonProperty("hot_ttl_seconds")
+    val hotTtlSeconds: Long = 5 * 60,
+
+    // Jobs, and their results, are destroyed this long after they are created.
+    // Also the latest DESTRUCTION a client may ask for.
+    @JsonProperty("ttl_seconds")
+    val ttlSeconds: Long = 7 * 24 * 60 * 60,
+
+    @JsonProperty("eviction_interval_seconds")
+    val evictionIntervalSeconds: Long = 60
+)
+
+/*
+* Disk quotas for results. Once over quota, the results retrieved least
+* recently are removed first. Zero means no quota.
+*/
+data class ResultQuotaConfiguration(
+    @JsonProperty("max_bytes")
+    val maxBytes: Long = 0,
+
+    @JsonProperty("max_bytes_per_owner")
+    val maxBytesPerOwner: Long = 0,
+
+    @JsonProperty("interval_seconds")
+    val intervalSeconds: Long = 5 * 60
+)
+
 class AlbuqueryConfiguration(
     @JsonProperty("dax_metaserv_db")
     val DAX_METASERV_DB: DataSourceFactory,
@@ -41,6 +163,57 @@ class AlbuqueryConfiguration(
     val DAX_PASSWORD_STORE: List<Credential>,
 
     @JsonProperty("dax_base_path")
-    var DAX_BASE_PATH: String?
+    var DAX_BASE_PATH: String?,
+
+    @JsonProperty("dax_result_database")
+    val DAX_RESULT_DATABASE: ResultDatabaseConfiguration = ResultDatabaseConfiguration(),
+
+    // Bytes of result rows a single query may buffer in memory
+    @JsonProperty("dax_query_fetch_budget")
+    val DAX_QUERY_FETCH_BUDGET: Long = DEFAULT_QUERY_FETCH_BUDGET,
+
+    // Bytes of heap all running queries may use together. Defaults to half the maximum heap.
+    @JsonProperty("dax_memory_budget")
+    val DAX_MEMORY_BUDGET: Long = Runtime.getRuntime().maxMemory() / 2,
+
+    // Request header naming the user, set by an authenticating proxy in front of the service.
+    // Only set it when clients can't reach the service directly, or they can claim any owner.
+    @JsonProperty("dax_owner_header")
+    val DAX_OWNER_HEADER: String? = null,
+
+    // Queries running at once, over all database instances
+    @JsonProperty("dax_max_concurrent_queries")
+    val DAX_MAX_CONCURRENT_QUERIES: Int = 32,
+
+    // Queries running at once against a single database instance
+    @JsonProperty("dax_max_queries_per_backend")
+    val DAX_MAX_QUERIES_PER_BACKEND: Int = 8,
+
+    // Seconds a query may run before it's aborted, 0 for no limit. Also caps EXECUTIONDURATION.
+    @JsonProperty("dax_max_execution_duration")
+    val DAX_MAX_EXECUTION_DURATION: Long = 0,
+
+    // Seconds a request for a result waits for its query to finish
+    @JsonProperty("dax_result_wait_timeout")
+    val DAX_RESULT_WAIT_TIMEOUT: Long = DEFAULT_RESULT_WAIT_TIMEOUT,
+
+    // Milliseconds between progress reports of a running query
+    @JsonProperty("dax_progress_interval_ms")
+    val DAX_PROGRESS_INTERVAL_MS: Long = DEFAULT_PROGRESS_INTERVAL_MS,
+
+    @JsonProperty("dax_backend_pool")
+    val DAX_BACKEND_POOL: BackendPoolConfiguration = BackendPoolConfiguration(),
+
+    @JsonProperty("dax_metaserv_cache")
+    val DAX_METASERV_CACHE: MetaservCacheConfiguration = MetaservCacheConfiguration(),
+
+    @JsonProperty("dax_query_cache")
+    val DAX_QUERY_CACHE: QueryCacheConfiguration = QueryCacheConfiguration(),
+
+    @JsonProperty("dax_job_store")
+    val DAX_JOB_STORE: JobStoreConfiguration = JobStoreConfiguration(),
+
+    @JsonProperty("dax_result_quota")
+    val DAX_RESULT_QUOTA: ResultQuotaConfiguration = ResultQuotaConfiguration()
 
 ) : Configuration()
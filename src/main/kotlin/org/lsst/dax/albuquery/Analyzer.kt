@@ -29,19 +29,79 @@ import com.facebook.presto.sql.tree.DefaultTraversalVisitor
 import com.facebook.presto.sql.tree.DereferenceExpression
 import com.facebook.presto.sql.tree.Identifier
 import com.facebook.presto.sql.tree.Join
+import com.facebook.presto.sql.tree.Node
 import com.facebook.presto.sql.tree.QualifiedName
 import com.facebook.presto.sql.tree.QuerySpecification
 import com.facebook.presto.sql.tree.Relation
 import com.facebook.presto.sql.tree.ShowColumns
 import com.facebook.presto.sql.tree.SingleColumn
+import com.facebook.presto.sql.tree.Statement
 import com.facebook.presto.sql.tree.SubqueryExpression
 import com.facebook.presto.sql.tree.Table
 import org.lsst.dax.albuquery.dao.MetaservDAO
+import org.lsst.dax.albuquery.rewrite.TableNameRewriter
 import java.net.URI
 import javax.ws.rs.core.UriBuilder
 
+/**
+ * The result of analyzing a statement with [Analyzer.QueryAnalyzer].
+ *
+ * @property statement The statement, with instance names stripped from tables
+ * @property tables Tables of the original statement
+ * @property columns Columns of the outermost select lists
+ */
+data class QueryAnalysis(
+    val statement: Statement,
+    val tables: List<ParsedTable>,
+    val columns: List<ParsedColumn>,
+    val allColumnTables: List<QualifiedName>,
+    val allColumns: Boolean,
+    val hasBooleanLiterals: Boolean
+)
+
 class Analyzer {
 
+    /**
+     * Extracts tables and columns, strips instance names from tables and
+     * marks boolean literals in a single pass over a statement.
+     *
+     * Like [TableAndColumnExtractor], only the outermost query
+     * specifications are extracted.
+     */
+    class QueryAnalyzer : TableNameRewriter() {
+        private val extractor = TableAndColumnExtractor()
+        private var querySpecificationDepth = 0
+
+        fun analyze(statement: Statement): QueryAnalysis {
+            val rewritten = process(statement) as Statement
+            return QueryAnalysis(
+                statement = rewritten,
+                tables = extractor.tables.toList(),
+                columns = extractor.columns.toList(),
+                allColumnTables = extractor.allColumnTables.toList(),
+                allColumns = extractor.allColumns,
+                hasBooleanLiterals = hasBooleanLiterals
+            )
+        }
+
+        override fun visitQuerySpecification(node: QuerySpecification, context: Void?): QuerySpecification {
+            if (querySpecificationDepth == 0) {
+                extractor.visitQuerySpecification(node, null)
+            }
+            querySpecificationDepth++
+            try {
+                return super.visitQuerySpecification(node, context)
+            } finally {
+                querySpecificationDepth--
+            }
+        }
+
+        override fun visitShowColumns(node: ShowColumns?, context: Void?): Node {
+            extractor.visitShowColumns(node, null)
+            return super.visitShowColumns(node, context)
+        }
+    }
+
     class TableAndColumnExtractor : DefaultTraversalVisitor<Void, Void>() {
         val columns = arrayListOf<ParsedColumn>()
         val allColumnTables = arrayListOf<QualifiedName>()
@@ -165,7 +225,6 @@ class Analyzer {
                     givenUri.path, null, null)
             }
 
-            // FIXME: If this is too slow, use a Guava LoadingCache
             val db = metaservDAO.findDatabaseByName(instanceIdentifier)
             if (db != null) {
                 val defaultSchema = metaservDAO.findDefaultSchemaByDatabaseId(db.id)
@@ -0,0 +1,135 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.lsst.dax.albuquery
+
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry
+import org.slf4j.LoggerFactory
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+
+/*
+* Estimated memory for serializer buffers (writers, JSON generator) per query.
+*/
+val SERIALIZER_BUFFER_BYTES = 256L * 1024
+
+/**
+ * Enforces a heap budget across all running queries.
+ *
+ * Before a query starts fetching, it reserves its estimated footprint
+ * (fetch buffer, row batches, serializer buffers). When the budget is
+ * exhausted, [reserve] blocks until other queries release memory, so new
+ * queries wait instead of pushing the JVM out of memory.
+ *
+ * Accounting is done in KiB so large budgets fit in the semaphore.
+ *
+ * @property budgetBytes Total bytes which may be reserved at any time
+ */
+class MemoryGovernor(val budgetBytes: Long) {
+    private val budgetKib = toKib(budgetBytes)
+    private val permits = Semaphore(budgetKib, true)
+    private val reservations = ConcurrentHashMap<String, Reservation>()
+
+    /*
+    * Memory reserved for a query. Closing it returns the memory to the governor.
+    */
+    inner class Reservation(val queryId: String, kib: Int) : AutoCloseable {
+        @Volatile
+        var kib: Int = kib
+            private set
+
+        val bytes: Long
+            get() = kib * 1024L
+
+        /**
+         * Shrink the reservation to [bytes], once the actual footprint is known.
+         * Reservations never grow, as that could deadlock queries against each other.
+         */
+        @Synchronized
+        fun shrink(bytes: Long) {
+            val newKib = toKib(bytes)
+            if (newKib < kib) {
+                permits.release(kib - newKib)
+                kib = newKib
+            }
+        }
+
+        @Synchronized
+        override fun close() {
+            if (kib > 0) {
+                permits.release(kib)
+                kib = 0
+            }
+            reservations.remove(queryId, this)
+        }
+    }
+
+    /**
+     * Reserve [bytes] for [queryId], blocking until they are available.
+     * Requests larger than the whole budget are capped to the budget.
+     *
+     * @param cancelled Checked while waiting, a [CancellationException] is thrown once it's true
+     */
+    fun reserve(queryId: String, bytes: Long, cancelled: () -> Boolean = { false }): Reservation {
+        val kib = Math.min(toKib(bytes), budgetKib)
+        if (!permits.tryAcquire(kib)) {
+            LOGGER.info("Query $queryId waiting for ${kib}KiB, ${availableBytes}B available")
+            while (!permits.tryAcquire(kib, CANCELLATION_POLL_MS, TimeUnit.MILLISECONDS)) {
+                if (cancelled()) {
+                    throw CancellationException("Query $queryId was cancelled while waiting for memory")
+                }
+            }
+        }
+        val reservation = Reservation(queryId, kib)
+        reservations[queryId] = reservation
+        return reservation
+    }
+
+    val availableBytes: Long
+        get() = permits.availablePermits() * 1024L
+
+    val reservedBytes: Long
+        get() = (budgetKib - permits.availablePermits()) * 1024L
+
+    fun reservedBytesFor(queryId: String): Long = reservations[queryId]?.bytes ?: 0
+
+    fun registerMetrics(metrics: MetricRegistry) {
+        metrics.register(MetricRegistry.name(MemoryGovernor::class.java, "reservedBytes"),
+            Gauge<Long> { reservedBytes })
+        metrics.register(MetricRegistry.name(MemoryGovernor::class.java, "budgetBytes"),
+            Gauge<Long> { budgetBytes })
+        metrics.register(MetricRegistry.name(MemoryGovernor::class.java, "waitingQueries"),
+            Gauge<Int> { permits.queueLength })
+    }
+
+    companion object {
+        private val LOGGER = LoggerFactory.getLogger(MemoryGovernor::class.java)
+
+        private fun toKib(bytes: Long): Int {
+            val kib = (bytes + 1023) / 1024
+            return kib.coerceIn(1, Int.MAX_VALUE.toLong()).toInt()
+        }
+    }
+}
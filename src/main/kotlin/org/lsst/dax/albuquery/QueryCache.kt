@@ -0,0 +1,246 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.lsst.dax.albuquery
+
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry
+import com.facebook.presto.sql.parser.ParsingOptions
+import com.facebook.presto.sql.parser.SqlParser
+import com.facebook.presto.sql.tree.Query
+import com.facebook.presto.sql.tree.QuerySpecification
+import com.facebook.presto.sql.tree.ShowColumns
+import com.facebook.presto.sql.tree.Statement
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import org.lsst.dax.albuquery.dao.MetaservDAO
+import org.lsst.dax.albuquery.rewrite.QservSqlFormatter
+import java.net.URI
+import java.util.Optional
+import java.util.concurrent.TimeUnit
+
+/**
+ * A parsed, analyzed and rewritten query, ready to be sent to its database.
+ * Instances may be shared between queries and must not be modified.
+ *
+ * @property analysis Analysis of the statement, including the rewritten statement
+ * @property dbUri URI of the database instance the query runs on
+ * @property sql The query text for the database instance
+ */
+class PreparedQuery(
+    val analysis: QueryAnalysis,
+    val dbUri: URI,
+    val sql: String
+) {
+    // Row limit of the query itself, from TOP or LIMIT
+    val limit: Long? = (analysis.statement as? Query)?.let { limitOf(it) }
+
+    val statement: Statement
+        get() = analysis.statement
+
+    // Tables of the original statement, qualified with their database
+    val qualifiedTables: List<ParsedTable>
+        get() = analysis.tables
+
+    val hasBooleanLiterals: Boolean
+        get() = analysis.hasBooleanLiterals
+
+    /**
+     * The query to run for a request with the given MAXREC. When MAXREC
+     * is lower than the query's own limit, one more row is requested, so
+     * the truncation of the result can be detected.
+     */
+    fun backendQuery(maxRec: Long?): BackendQuery {
+        val statement = analysis.statement
+        if (maxRec == null || maxRec < 0 || statement !is Query || (limit != null && limit <= maxRec)) {
+            return BackendQuery(sql, null)
+        }
+        return BackendQuery(QservSqlFormatter.format(withLimit(statement, maxRec + 1)), maxRec)
+    }
+}
+
+/**
+ * @property maxRows Number of rows to return, when the query may return one more
+ */
+data class BackendQuery(val sql: String, val maxRows: Long?)
+
+class NotSelectStatementException(message: String) : Exception(message)
+
+private val SQL_PARSER = SqlParser()
+
+// ADQL's TOP, which presto can't parse, in the outermost select list
+private val TOP = Regex("""^(\s*SELECT\s+(?:ALL\s+|DISTINCT\s+)?)TOP\s+(\d+)\s+""", RegexOption.IGNORE_CASE)
+
+fun limitOf(query: Query): Long? {
+    val body = query.queryBody
+    val limit = if (body is QuerySpecification && body.limit.isPresent) body.limit else query.limit
+    return limit.orElse(null)?.toLongOrNull()
+}
+
+/**
+ * Return [query] with its outermost row limit replaced by [limit].
+ */
+fun withLimit(query: Query, limit: Long): Query {
+    val body = query.queryBody
+    if (body is QuerySpecification && !query.orderBy.isPresent && !query.limit.isPresent) {
+        // Where the parser puts the limit of a simple query
+        val spec = QuerySpecification(body.select, body.from, body.where, body.groupBy, body.having,
+            body.orderBy, Optional.of(limit.toString()))
+        return Query(query.with, spec, Optional.empty(), Optional.empty())
+    }
+    return Query(query.with, body, query.orderBy, Optional.of(limit.toString()))
+}
+
+/**
+ * Parse and analyze [query], find the database it runs on and rewrite it
+ * for that database.
+ */
+fun prepareQuery(metaservDAO: MetaservDAO, query: String): PreparedQuery {
+    val top = TOP.find(query)
+    val queryText = if (top != null) query.replaceRange(top.range, top.groupValues[1]) else query
+    var statement = SQL_PARSER.createStatement(queryText,
+        ParsingOptions(ParsingOptions.DecimalLiteralTreatment.AS_DOUBLE)
+    )
+    if (top != null && statement is Query) {
+        val topLimit = top.groupValues[2].toLong()
+        statement = withLimit(statement, minOf(topLimit, limitOf(statement) ?: topLimit))
+    }
+    // allow MAXREC=0 case (as in ShowColumns) to go through
+    if (statement !is Query && statement !is ShowColumns) {
+        throw NotSelectStatementException("Only Select Queries allowed")
+    }
+    // Extract tables and columns, strip instance names and mark boolean literals
+    val analysis = Analyzer.QueryAnalyzer().analyze(statement)
+    val dbUri = Analyzer.getDatabaseURI(metaservDAO, analysis.tables)
+    return PreparedQuery(
+        analysis = analysis,
+        dbUri = dbUri,
+        sql = QservSqlFormatter.format(analysis.statement)
+    )
+}
+
+/**
+ * Caches prepared queries by their normalized text, so repeated queries
+ * skip parsing, analysis, the database lookup and the rewrite.
+ *
+ * Entries expire, so a database moving to another instance is eventually
+ * noticed. Queries which fail to prepare aren't cached.
+ */
+class QueryCache(config: QueryCacheConfiguration = QueryCacheConfiguration()) {
+
+    private val cache: Cache<String, PreparedQuery> = CacheBuilder.newBuilder()
+        .maximumSize(config.maximumSize)
+        .expireAfterWrite(config.ttlSeconds, TimeUnit.SECONDS)
+        .recordStats()
+        .build()
+
+    fun prepare(metaservDAO: MetaservDAO, query: String): PreparedQuery {
+        val key = normalizeQuery(query)
+        val cached = cache.getIfPresent(key)
+        if (cached != null) {
+            return cached
+        }
+        // Concurrent misses on the same text may both prepare it, which is harmless
+        val prepared = prepareQuery(metaservDAO, query)
+        cache.put(key, prepared)
+        return prepared
+    }
+
+    fun invalidateAll() {
+        cache.invalidateAll()
+    }
+
+    val hitCount: Long
+        get() = cache.stats().hitCount()
+
+    val missCount: Long
+        get() = cache.stats().missCount()
+
+    fun registerMetrics(metrics: MetricRegistry) {
+        metrics.register(MetricRegistry.name(QueryCache::class.java, "size"), Gauge<Long> { cache.size() })
+        metrics.register(MetricRegistry.name(QueryCache::class.java, "hits"), Gauge<Long> { hitCount })
+        metrics.register(MetricRegistry.name(QueryCache::class.java, "misses"), Gauge<Long> { missCount })
+    }
+
+    companion object {
+        /**
+         * Collapse runs of whitespace outside of quoted strings, identifiers
+         * and comments, and trim the query.
+         *
+         * As in ADQL and SQL, only a doubled quote escapes a quote, a
+         * backslash is an ordinary character. Comments are kept verbatim,
+         * along with the line break ending a line comment, since what
+         * follows it is no longer commented out.
+         */
+        fun normalizeQuery(query: String): String {
+            val text = query.trim()
+            val normalized = StringBuilder(text.length)
+            var quote: Char? = null
+            var pendingSpace = false
+            var i = 0
+            while (i < text.length) {
+                val c = text[i]
+                if (quote == null) {
+                    if (c.isWhitespace()) {
+                        pendingSpace = true
+                        i++
+                        continue
+                    }
+                    if (pendingSpace) {
+                        normalized.append(' ')
+                        pendingSpace = false
+                    }
+                    val commentEnd = commentEnd(text, i)
+                    if (commentEnd > i) {
+                        normalized.append(text, i, commentEnd)
+                        i = commentEnd
+                        continue
+                    }
+                    if (c == '\'' || c == '"' || c == '`') {
+                        quote = c
+                    }
+                } else if (c == quote) {
+                    // A doubled quote ends and reopens the quoted text, which is equivalent
+                    quote = null
+                }
+                normalized.append(c)
+                i++
+            }
+            return normalized.toString()
+        }
+
+        /*
+        * Index just past the comment starting at [start], or [start] if no comment starts there.
+        */
+        private fun commentEnd(text: String, start: Int): Int {
+            if (text.startsWith("--", start)) {
+                val newline = text.indexOf('\n', start)
+                return if (newline < 0) text.length else newline + 1
+            }
+            if (text.startsWith("/*", start)) {
+                val end = text.indexOf("*/", start + 2)
+                return if (end < 0) text.length else end + 2
+            }
+            return start
+        }
+    }
+}
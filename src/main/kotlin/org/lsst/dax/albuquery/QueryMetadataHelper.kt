@@ -27,7 +27,18 @@ import org.lsst.dax.albuquery.model.metaserv.Column
 import org.lsst.dax.albuquery.model.metaserv.Table
 import java.util.LinkedHashMap
 
-class QueryMetadataHelper(val analyzer: Analyzer.TableAndColumnExtractor) {
+class QueryMetadataHelper(
+    val tables: List<ParsedTable>,
+    val columns: List<ParsedColumn>,
+    val allColumns: Boolean,
+    val allColumnTables: List<QualifiedName>
+) {
+
+    constructor(analysis: QueryAnalysis) :
+        this(analysis.tables, analysis.columns, analysis.allColumns, analysis.allColumnTables)
+
+    constructor(analyzer: Analyzer.TableAndColumnExtractor) :
+        this(analyzer.tables, analyzer.columns, analyzer.allColumns, analyzer.allColumnTables)
 
     fun associateMetadata(
         jdbcColumnMetadata: LinkedHashMap<String, JdbcColumnMetadata>,
@@ -45,7 +56,7 @@ class QueryMetadataHelper(val analyzer: Analyzer.TableAndColumnExtractor) {
             parsedTableToColumns[parsedTable] = metaservColumns.associateBy({ it.name }, { it })
         }
 
-        for (column in analyzer.columns) {
+        for (column in columns) {
             if (column.qualifiedName.prefix.isPresent) {
                 val parsedTable = parsedTableMapping[column.qualifiedName.prefix.get()]
                 if (parsedTable != null) {
@@ -67,18 +78,18 @@ class QueryMetadataHelper(val analyzer: Analyzer.TableAndColumnExtractor) {
                 }
             }
         }
-        val columnPositionMapping = analyzer.columns.associateBy({ it.position }, { it })
+        val columnPositionMapping = columns.associateBy({ it.position }, { it })
         val columnMetadataList: ArrayList<ColumnMetadata> = arrayListOf()
         for ((name, jdbcColumn) in jdbcColumnMetadata) {
             val parsedColumn = columnPositionMapping[jdbcColumn.ordinal]
             var metaservColumn: Column? = parsedColumnToColumn[parsedColumn]
                 ?: defaultColumnMap[parsedColumn?.identifier?.toLowerCase()]
 
-            if (metaservColumn == null && analyzer.allColumns) {
+            if (metaservColumn == null && allColumns) {
                 metaservColumn = defaultColumnMap[jdbcColumn.name.toLowerCase()]
             }
 
-            if (metaservColumn == null && !analyzer.allColumnTables.isEmpty()) {
+            if (metaservColumn == null && !allColumnTables.isEmpty()) {
                 // FIXME: Special logic for SELECT foo.*, bar.* FROM baz ? Not sure...
                 // val table = parsedColumn.qualifiedName.prefix.get()
                 metaservColumn = defaultColumnMap[jdbcColumn.name.toLowerCase()]
@@ -91,19 +102,82 @@ class QueryMetadataHelper(val analyzer: Analyzer.TableAndColumnExtractor) {
                     ucd = metaservColumn?.ucd,
                     unit = metaservColumn?.unit,
                     tableName = metaservColumn?.tableName ?: jdbcColumn.tableName,
-                    jdbcType = jdbcColumn.jdbcType)
+                    jdbcType = jdbcColumn.jdbcType,
+                    arraysize = metaservColumn?.arraysize)
             columnMetadataList.add(columnMetadata)
         }
         return columnMetadataList
     }
 
+    /**
+     * Build the metadata of a query's result from metaserv alone, for
+     * requests which only need the schema of the result.
+     *
+     * @param selectItemCount Number of items in the select list
+     * @return The metadata, or null if a select item isn't a known column
+     */
+    fun schemaMetadata(
+        selectItemCount: Int,
+        possibleTablesAndColumns: Map<ParsedTable, Pair<Table, List<Column>>>
+    ): List<ColumnMetadata>? {
+        val parsedTableMapping = buildTableNameAndAliasMapping()
+        val orderedColumns = linkedMapOf<ParsedTable, List<Column>>()
+        for (parsedTable in tables.sortedBy { it.position }) {
+            val (_, metaservColumns) = possibleTablesAndColumns[parsedTable] ?: continue
+            orderedColumns[parsedTable] = metaservColumns.sortedBy { it.ordinal }
+        }
+
+        val columnPositionMapping = columns.associateBy({ it.position }, { it })
+        val columnMetadataList = arrayListOf<ColumnMetadata>()
+        for (position in 1..selectItemCount) {
+            // Anything other than a column, like an expression, is only known to the database
+            val parsedColumn = columnPositionMapping[position] ?: return null
+            val prefix = parsedColumn.qualifiedName.prefix.orElse(null)
+            val candidateTables = if (prefix != null) {
+                listOf(parsedTableMapping[prefix] ?: return null)
+            } else {
+                orderedColumns.keys.toList()
+            }
+            if (parsedColumn.identifier == "*") {
+                for (parsedTable in candidateTables) {
+                    val tableColumns = orderedColumns[parsedTable] ?: return null
+                    tableColumns.mapTo(columnMetadataList) { schemaColumnMetadata(it.name, it) }
+                }
+                continue
+            }
+            val metaservColumn = candidateTables.asSequence()
+                .mapNotNull { parsedTable ->
+                    orderedColumns[parsedTable]?.find { it.name.equals(parsedColumn.identifier, ignoreCase = true) }
+                }
+                .firstOrNull() ?: return null
+            columnMetadataList.add(schemaColumnMetadata(parsedColumn.alias ?: metaservColumn.name, metaservColumn))
+        }
+        return columnMetadataList
+    }
+
+    private fun schemaColumnMetadata(name: String, column: Column): ColumnMetadata {
+        return ColumnMetadata(name,
+            datatype = column.datatype,
+            description = column.description ?: "",
+            ucd = column.ucd,
+            unit = column.unit,
+            tableName = column.tableName,
+            jdbcType = lsstToJdbcType(column.datatype),
+            arraysize = column.arraysize)
+    }
+
     fun buildTableNameAndAliasMapping(): Map<QualifiedName, ParsedTable> {
         val tableNameMapping = hashMapOf<QualifiedName, ParsedTable>()
-        for (table in analyzer.tables) {
+        for (table in tables) {
             if (table.alias != null) {
                 tableNameMapping[QualifiedName.of(table.alias)] = table
             }
             tableNameMapping[table.qualifiedName] = table
+            // Columns may be qualified with the name as rewritten, without the instance
+            val parts = table.qualifiedName.originalParts
+            if (parts.size == 3) {
+                tableNameMapping.putIfAbsent(QualifiedName.of(parts.subList(1, parts.size)), table)
+            }
         }
         return tableNameMapping
     }
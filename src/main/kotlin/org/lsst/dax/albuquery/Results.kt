@@ -22,6 +22,7 @@
 
 package org.lsst.dax.albuquery
 
+import com.codahale.metrics.MetricRegistry
 import com.codahale.metrics.annotation.Timed
 import com.facebook.presto.sql.tree.QualifiedName
 import com.fasterxml.jackson.annotation.JsonIgnore
@@ -29,46 +30,218 @@ import org.lsst.dax.albuquery.dao.MetaservDAO
 import org.lsst.dax.albuquery.model.metaserv.Column
 import org.lsst.dax.albuquery.model.metaserv.Table
 import org.lsst.dax.albuquery.results.SqliteResult
+import org.lsst.dax.albuquery.results.SqliteResultWriter
+import org.slf4j.LoggerFactory
 import java.nio.file.Path
 import java.sql.JDBCType
 import java.sql.ResultSet
 import java.sql.Statement
 import java.sql.Connection
-import java.sql.DriverManager
-import java.sql.PreparedStatement
 import java.sql.SQLException
 
 import java.util.NoSuchElementException
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicReference
+
+/*
+* Phases of a query, as in UWS.
+*/
+enum class ExecutionPhase {
+    PENDING, QUEUED, EXECUTING, COMPLETED, ERROR, ABORTED;
+
+    val isFinished: Boolean
+        get() = this == COMPLETED || this == ERROR || this == ABORTED
+}
 
 /*
 * For keeping track of query phase (state).
+*
+* The phase only moves forward: PENDING, QUEUED, EXECUTING and then one of
+* the finished phases. A query may be aborted in any phase before it finishes.
+* Phase changes are atomic, so they are safe to make and observe from any
+* thread. Listeners are called on the thread making the change.
 */
-data class PhaseInfo(
-    var hasBooleanLiterals: Boolean = false,
-    var identifier: String = "",
-    var phase: String = "",
-    var parameters: String = "",
-    var format: String = "",
-    var errorFile: String = "",
-    var result: String = ""
+class PhaseInfo(
+    identifier: String = "",
+    phase: ExecutionPhase = ExecutionPhase.PENDING
 ) {
+    @Volatile var hasBooleanLiterals: Boolean = false
+    @Volatile var identifier: String = identifier
+    @Volatile var parameters: String = ""
+    @Volatile var format: String = ""
+    @Volatile var errorFile: String = ""
+    @Volatile var result: String = ""
+
+    private val currentPhase = AtomicReference<ExecutionPhase>(phase)
+    private val listeners = CopyOnWriteArrayList<(ExecutionPhase) -> Unit>()
+
+    val phase: ExecutionPhase
+        get() = currentPhase.get()
+
+    /**
+     * Move from one phase to another.
+     *
+     * @return false if the query wasn't in the [from] phase
+     */
+    fun transition(from: ExecutionPhase, to: ExecutionPhase): Boolean {
+        require(to in TRANSITIONS.getValue(from)) { "No transition from $from to $to" }
+        if (!currentPhase.compareAndSet(from, to)) {
+            return false
+        }
+        for (listener in listeners) {
+            try {
+                listener(to)
+            } catch (ex: Exception) {
+                // The phase has changed regardless, and the other listeners must still hear of it
+                LOGGER.warn("Phase listener failed for $identifier moving to $to", ex)
+            }
+        }
+        return true
+    }
+
+    fun addListener(listener: (ExecutionPhase) -> Unit) {
+        listeners.add(listener)
+    }
+
+    fun removeListener(listener: (ExecutionPhase) -> Unit) {
+        listeners.remove(listener)
+    }
+
+    /**
+     * A future completed with the phase of the query once it's no longer [from].
+     */
+    fun awaitChange(from: ExecutionPhase): CompletableFuture<ExecutionPhase> {
+        val changed = CompletableFuture<ExecutionPhase>()
+        val listener: (ExecutionPhase) -> Unit = { changed.complete(it) }
+        addListener(listener)
+        changed.whenComplete { _, _ -> removeListener(listener) }
+        // The phase may have changed before the listener was added
+        val current = phase
+        if (current != from) {
+            changed.complete(current)
+        }
+        return changed
+    }
+
     override fun toString(): String = "{'ID': '$identifier','PHASE': '$phase','PARAMETERS': '$parameters'}"
+
+    companion object {
+        private val LOGGER = LoggerFactory.getLogger(PhaseInfo::class.java)
+        private val TRANSITIONS = mapOf(
+            ExecutionPhase.PENDING to setOf(ExecutionPhase.QUEUED, ExecutionPhase.ABORTED),
+            ExecutionPhase.QUEUED to setOf(ExecutionPhase.EXECUTING, ExecutionPhase.ABORTED),
+            ExecutionPhase.EXECUTING to setOf(ExecutionPhase.COMPLETED, ExecutionPhase.ERROR, ExecutionPhase.ABORTED),
+            ExecutionPhase.COMPLETED to setOf(),
+            ExecutionPhase.ERROR to setOf(),
+            ExecutionPhase.ABORTED to setOf()
+        )
+    }
 }
 
 /*
-* Default fetch size from the database.
-* We set this to 50k.
-*
-* The assumptions are:
-* (1) Rows will be 1kB or less
-* (2) There will be 4 serialized bytes also in memory for every fetched byte
-* (3) This will provide an upper limit of ~250MB/query in memory at any given time
-* (4) Assuming 4GB/core, this will allow us to process ~8 queries per core without
-* running out of memory.
+* Maximum fetch size from the database.
 *
+* The actual fetch size of a query is derived from the estimated width of
+* its rows and the per-query fetch budget, see FetchPlan.
 * */
 val RS_FETCH_SIZE = 50_000
 
+/*
+* Fetch size used until the result metadata, and therefore the row width,
+* is known.
+*/
+val RS_INITIAL_FETCH_SIZE = 64
+
+/*
+* Maximum number of rows in a RowBatch. Batches are the unit handed to the
+* SQLite result writer and to the response serializers.
+*/
+val ROW_BATCH_SIZE = 5_000
+
+/*
+* Default byte budget for the rows a single query buffers in memory.
+*/
+val DEFAULT_QUERY_FETCH_BUDGET = 64L * 1024 * 1024
+
+/*
+* Default number of seconds a request for a result waits for its query.
+*/
+val DEFAULT_RESULT_WAIT_TIMEOUT = 10L * 60
+
+/*
+* Default number of milliseconds between progress reports of a query.
+*/
+val DEFAULT_PROGRESS_INTERVAL_MS = 1000L
+
+/*
+* Milliseconds between checks for cancellation while a query waits for memory
+* or for its setup, bounding how long an aborted query holds its worker.
+*/
+val CANCELLATION_POLL_MS = 100L
+
+/*
+* Width estimates for columns whose values have no fixed size.
+* Variable width values are capped, so a LONGBLOB column counts as 1MiB.
+*/
+private val MAX_COLUMN_WIDTH = 1L * 1024 * 1024
+private val CELL_OVERHEAD = 16L
+
+fun estimateColumnWidth(column: JdbcColumnMetadata): Long {
+    val width = when (column.jdbcType) {
+        JDBCType.BIGINT -> 8L
+        JDBCType.DOUBLE -> 8L
+        JDBCType.FLOAT -> 8L
+        JDBCType.INTEGER -> 4L
+        JDBCType.REAL -> 4L
+        JDBCType.SMALLINT -> 2L
+        JDBCType.TINYINT -> 1L
+        JDBCType.BIT -> 1L
+        JDBCType.BOOLEAN -> 1L
+        JDBCType.DATE -> 16L
+        JDBCType.TIME -> 16L
+        JDBCType.TIMESTAMP -> 24L
+        // Characters are two bytes once decoded
+        JDBCType.CHAR, JDBCType.VARCHAR, JDBCType.LONGVARCHAR,
+        JDBCType.NCHAR, JDBCType.NVARCHAR, JDBCType.LONGNVARCHAR, JDBCType.CLOB ->
+            2L * column.precision.coerceAtLeast(1)
+        else -> column.precision.toLong().coerceAtLeast(8)
+    }
+    return width.coerceAtMost(MAX_COLUMN_WIDTH) + CELL_OVERHEAD
+}
+
+/**
+ * Fetch and batch sizes for a query.
+ *
+ * Both are derived from the estimated width of a row so that the rows a
+ * query buffers stay within its byte budget. Half the budget goes to the
+ * driver's fetch buffer and half to the row batches in flight between the
+ * backend, the SQLite writer and the serializer.
+ */
+data class FetchPlan(val rowWidth: Long, val fetchSize: Int, val batchSize: Int) {
+
+    // The most the query is planned to buffer, from the estimated row width rather than the rows themselves
+    val plannedBufferedBytes: Long
+        get() = rowWidth * (fetchSize + batchSize.toLong() * BATCHES_IN_FLIGHT)
+
+    companion object {
+        // Batches queued for the writer, plus the one being filled and the one being serialized
+        val BATCHES_IN_FLIGHT = SqliteResultWriter.WRITER_QUEUE_CAPACITY + 2
+
+        fun forColumns(columns: Collection<JdbcColumnMetadata>, budget: Long): FetchPlan {
+            val rowWidth = columns.map { estimateColumnWidth(it) }.sum().coerceAtLeast(1)
+            val fetchSize = (budget / 2 / rowWidth).coerceIn(1, RS_FETCH_SIZE.toLong()).toInt()
+            val batchSize = (budget / 2 / BATCHES_IN_FLIGHT / rowWidth).coerceIn(1, ROW_BATCH_SIZE.toLong()).toInt()
+            return FetchPlan(rowWidth, fetchSize, batchSize)
+        }
+    }
+}
+
 data class ParsedColumn(
     val identifier: String,
     val qualifiedName: QualifiedName,
@@ -90,7 +263,8 @@ data class ColumnMetadata(
     val ucd: String?,
     val unit: String?,
     val tableName: String?,
-    @JsonIgnore val jdbcType: JDBCType
+    @JsonIgnore val jdbcType: JDBCType,
+    val arraysize: Int? = null
 )
 
 data class JdbcColumnMetadata(
@@ -102,7 +276,8 @@ data class JdbcColumnMetadata(
     val schemaName: String?,
     val catalogName: String?,
     val nullable: Int,
-    val jdbcType: JDBCType
+    val jdbcType: JDBCType,
+    val precision: Int = 0
 )
 
 fun jdbcRowMetadata(rs: ResultSet): LinkedHashMap<String, JdbcColumnMetadata> {
@@ -120,72 +295,150 @@ fun jdbcRowMetadata(rs: ResultSet): LinkedHashMap<String, JdbcColumnMetadata> {
             schemaName = resultSetMetaData.getSchemaName(i),
             catalogName = resultSetMetaData.getCatalogName(i),
             nullable = resultSetMetaData.isNullable(i),
-            jdbcType = JDBCType.valueOf(resultSetMetaData.getColumnType(i))
+            jdbcType = JDBCType.valueOf(resultSetMetaData.getColumnType(i)),
+            precision = resultSetMetaData.getPrecision(i)
         )
         rowMetadata[name] = columnMetadata
     }
     return rowMetadata
 }
 
+/**
+ * Wait for a step of the query setup, rethrowing the exception it failed with.
+ *
+ * @param cancelled Checked while waiting, a [CancellationException] is thrown once it's true
+ */
+fun <T> awaitSetup(future: Future<T>, cancelled: () -> Boolean = { false }): T {
+    while (true) {
+        try {
+            return future.get(CANCELLATION_POLL_MS, TimeUnit.MILLISECONDS)
+        } catch (ex: TimeoutException) {
+            if (cancelled()) {
+                throw CancellationException("Cancelled while waiting for query setup")
+            }
+        } catch (ex: ExecutionException) {
+            val cause = ex.cause
+            when (cause) {
+                is SQLException -> throw cause
+                is RuntimeException -> throw cause
+                else -> throw RuntimeException(cause)
+            }
+        }
+    }
+}
+
+/**
+ * Streams the results of [query] from the backend in batches, persisting
+ * them to the result database in [resultDir] as they go.
+ *
+ * The statement is a forward-only, read-only streaming cursor. Its fetch
+ * size and the batch size are sized from the row width (see [FetchPlan]),
+ * so memory use is bounded by [fetchBudget] rather than by the size of the
+ * result.
+ *
+ * The result database may be opened ahead of time and passed as
+ * [resultDatabase], in which case it's only waited for once the query has
+ * returned.
+ *
+ * When [maxRows] is given, rows past it aren't returned. The query should
+ * return at most one more row, which marks the result as [overflow].
+ */
 @Timed
-class RowStreamIterator(private val conn: Connection, query: String, resultDir: Path) : Iterator<List<Any?>> {
-    private var row: List<Any?> = listOf()
-    private var emptyRow = true
-    val stmt: Statement = conn.createStatement()
+class RowStreamIterator(
+    private val conn: Connection,
+    query: String,
+    resultDir: Path,
+    fetchBudget: Long = CONFIG?.DAX_QUERY_FETCH_BUDGET ?: DEFAULT_QUERY_FETCH_BUDGET,
+    resultDatabase: Future<Connection>? = null,
+    private val maxRows: Long? = null,
+    // Called with the statement before it's executed, so it can be cancelled
+    onStatement: ((Statement) -> Unit)? = null
+) : Iterator<RowBatch> {
+    private var batch: RowBatch? = null
+    val stmt: Statement = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)
     val rs: ResultSet
     val jdbcColumnMetadata: LinkedHashMap<String, JdbcColumnMetadata>
     val jdbcColumnMetadataList: List<JdbcColumnMetadata>
-    private val sqliteConnection: Connection
-    private val sqliteSql: String
-    val sqliteStmt: PreparedStatement
-    var rowCount = 0
+    val fetchPlan: FetchPlan
+    private val rowDecoder: RowDecoder
+    private val resultWriter: SqliteResultWriter
+    private var closed = false
+    // Written once per batch by the fetching thread, read by progress reports
+    @Volatile
+    var rowCount = 0L
+        private set
+    // Whether rows were left out because of maxRows
+    var overflow = false
 
     init {
-        this.rs = stmt.executeQuery(query)
-        this.rs.fetchSize = RS_FETCH_SIZE
+        // A fetch size makes the driver stream the result instead of buffering all of it
+        stmt.fetchSize = RS_INITIAL_FETCH_SIZE
+        try {
+            onStatement?.invoke(stmt)
+            this.rs = stmt.executeQuery(query)
+        } catch (ex: Exception) {
+            stmt.close()
+            throw ex
+        }
         this.jdbcColumnMetadata = jdbcRowMetadata(rs)
         this.jdbcColumnMetadataList = jdbcColumnMetadata.values.toList()
-        val resultFilePath = resultDir.resolve("result.sqlite")
-        val sqliteUrl = "jdbc:sqlite:" + resultFilePath
-        val changeLog = SqliteResult.buildChangeLog(jdbcColumnMetadata.values)
-        SqliteResult.initializeDatabase(changeLog, sqliteUrl)
-        sqliteConnection = DriverManager.getConnection(sqliteUrl)
+        this.fetchPlan = FetchPlan.forColumns(jdbcColumnMetadataList, fetchBudget)
+        this.rs.fetchSize = fetchPlan.fetchSize
+        METRICS.histogram(MetricRegistry.name(RowStreamIterator::class.java, "plannedBufferedBytes"))
+            .update(fetchPlan.plannedBufferedBytes)
+        this.rowDecoder = RowDecoder(jdbcColumnMetadataList)
+        val resultFilePath = resultDir.resolve(SqliteResult.RESULT_DATABASE)
+        val sqliteConnection: Connection
+        try {
+            sqliteConnection = if (resultDatabase != null) awaitSetup(resultDatabase)
+                else SqliteResult.openResultDatabase(resultFilePath)
+            SqliteResult.createResultTable(sqliteConnection, jdbcColumnMetadata.values)
+        } catch (ex: Exception) {
+            rs.close()
+            stmt.close()
+            throw ex
+        }
         sqliteConnection.autoCommit = false
         val valList = arrayListOf<String>()
         jdbcColumnMetadata.values.forEach { valList.add("?") }
         val valString = valList.joinToString(",")
-        sqliteSql = "INSERT INTO result VALUES ($valString)"
-        sqliteStmt = sqliteConnection.prepareStatement(sqliteSql)
-        // FIXME: createSqliteDatabase(rs, jdbcColumnMetadata)
+        val sqliteStmt = sqliteConnection.prepareStatement("INSERT INTO result VALUES ($valString)")
+        resultWriter = SqliteResultWriter(sqliteConnection, sqliteStmt, resultFilePath)
+        resultWriter.start()
     }
 
     override fun hasNext(): Boolean {
         try {
-            if (emptyRow) {
-                if (rs.isClosed) {
-                    cleanup()
-                    return false
+            if (batch != null) {
+                return true
+            }
+            if (closed || rs.isClosed) {
+                cleanup()
+                return false
+            }
+            val nextBatch = rowDecoder.newBatch(fetchPlan.batchSize)
+            var exhausted = false
+            while (!nextBatch.isFull) {
+                if (maxRows != null && rowCount + nextBatch.size >= maxRows) {
+                    overflow = rs.next()
+                    exhausted = true
+                    break
                 }
                 if (!rs.next()) {
-                    cleanup()
-                    return false
-                }
-                row = makeRow(rs, jdbcColumnMetadataList)
-                rowCount++
-                for ((index, value) in row.withIndex()) {
-                    if (value == null) {
-                        sqliteStmt.setNull(index + 1, rs.metaData.getColumnType(index + 1))
-                    }
-                    sqliteStmt.setObject(index + 1, value)
+                    exhausted = true
+                    break
                 }
-                sqliteStmt.addBatch()
-                if (rowCount % RS_FETCH_SIZE == 0) {
-                    sqliteStmt.executeBatch()
-                }
-                emptyRow = false
-                return true
+                rowDecoder.decodeInto(rs, nextBatch)
+            }
+            if (nextBatch.size > 0) {
+                rowCount += nextBatch.size
+                resultWriter.write(nextBatch)
+                batch = nextBatch
+            }
+            if (exhausted) {
+                cleanup()
             }
-            return true
+            return batch != null
         } catch (ex: NoSuchElementException) {
             ex.printStackTrace()
             cleanup()
@@ -200,16 +453,20 @@ class RowStreamIterator(private val conn: Connection, query: String, resultDir:
         }
     }
 
-    override fun next(): List<Any?> {
+    override fun next(): RowBatch {
         if (!hasNext()) {
             throw NoSuchElementException()
         }
-        val ret = row
-        emptyRow = true
+        val ret = batch!!
+        batch = null
         return ret
     }
 
     fun cleanup() {
+        if (closed) {
+            return
+        }
+        closed = true
         try {
             rs.close()
         } catch (ex: SQLException) {
@@ -222,53 +479,26 @@ class RowStreamIterator(private val conn: Connection, query: String, resultDir:
             conn.close()
         } catch (ex: SQLException) {
         }
-        sqliteStmt.executeBatch()
-        sqliteConnection.commit()
-        sqliteStmt.close()
-        sqliteConnection.close()
-        // FIXME: Write report, close Sqlite Database
+        // Wait for the writer to commit and close the result database
+        resultWriter.finish()
+        // FIXME: Write report
     }
 }
 
-fun makeRow(rs: ResultSet, jdbcColumnMetadata: List<JdbcColumnMetadata>): List<Any?> {
-    /*
-    Note We are just going to make a copy of the row. It's already in memory
-     */
-    val row: ArrayList<Any?> = arrayListOf()
-    for (column in jdbcColumnMetadata) {
-        // TODO: Force type conversion?
-        row.add(rs.getObject(column.name))
-    }
-    return row
-}
-
 @Timed
 fun lookupMetadata(metaservDAO: MetaservDAO, qualifiedTables: List<ParsedTable>):
     Map<ParsedTable, Pair<Table, List<Column>>> {
     // "schema.table"
+    // FIXME: Handle unqualified table names/schema names
+    val tablesByDatabase = qualifiedTables.groupBy { it.qualifiedName.parts.get(0) }
+    val found = tablesByDatabase.mapValues { (databaseName, parsedTables) ->
+        metaservDAO.findTablesWithColumns(databaseName, parsedTables.map { it.identifier }.distinct())
+    }
     val foundColumns = linkedMapOf<ParsedTable, Pair<Table, List<Column>>>()
     for (parsedTable in qualifiedTables) {
-        val qualifiedTableName = parsedTable.qualifiedName
-        // FIXME: Handle unqualified table names/schema names
-        val databaseName = qualifiedTableName.parts.get(0)
-
-        val database = metaservDAO.findDatabaseByName(databaseName) ?: continue
-
-        val schema = metaservDAO.findDefaultSchemaByDatabaseId(database.id) ?: continue
-
-        val metaservTables = metaservDAO.findTablesBySchemaId(schema.id) ?: continue
-        for (table in metaservTables) {
-            table.schemaName = schema.name
-        }
-        for (metaservTable in metaservTables) {
-            if (metaservTable.name == parsedTable.identifier) {
-                val columns = metaservDAO.findColumnsByTableId(metaservTable.id)
-                for (column in columns) {
-                    column.tableName = metaservTable.name
-                }
-                foundColumns.put(parsedTable, Pair(metaservTable, columns))
-            }
-        }
+        val databaseName = parsedTable.qualifiedName.parts.get(0)
+        val tableColumns = found[databaseName]?.get(parsedTable.identifier) ?: continue
+        foundColumns.put(parsedTable, tableColumns)
     }
     return foundColumns
 }
@@ -300,3 +530,21 @@ fun jdbcToLsstType(jdbcType: JDBCType): String {
         else -> "UNKNOWN"
     }
 }
+
+fun lsstToJdbcType(datatype: String?): JDBCType {
+    return when (datatype?.toLowerCase()) {
+        "boolean" -> JDBCType.BOOLEAN
+        "short" -> JDBCType.SMALLINT
+        "int" -> JDBCType.INTEGER
+        "long" -> JDBCType.BIGINT
+        "float" -> JDBCType.REAL
+        "double" -> JDBCType.DOUBLE
+        "char" -> JDBCType.CHAR
+        "string" -> JDBCType.VARCHAR
+        "unicodechar" -> JDBCType.NVARCHAR
+        "binary" -> JDBCType.BINARY
+        "timestamp" -> JDBCType.TIMESTAMP
+        "time" -> JDBCType.TIME
+        else -> JDBCType.OTHER
+    }
+}
@@ -0,0 +1,256 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.lsst.dax.albuquery
+
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.databind.JsonSerializer
+import com.fasterxml.jackson.databind.SerializerProvider
+import java.io.Writer
+import java.sql.PreparedStatement
+import java.sql.ResultSet
+import java.util.Arrays
+import java.util.BitSet
+
+/*
+* Growable character buffer shared by all string columns of a batch,
+* so a batch retains one array instead of one String per cell.
+*/
+class CharArena(initialCapacity: Int) {
+    var chars = CharArray(initialCapacity)
+        private set
+    var size = 0
+        private set
+
+    /**
+     * Copy [value] into the arena.
+     * @return offset of the copied value
+     */
+    fun append(value: String): Int {
+        val offset = size
+        val length = value.length
+        if (offset + length > chars.size) {
+            chars = Arrays.copyOf(chars, Math.max(chars.size * 2, offset + length))
+        }
+        value.toCharArray(chars, offset, 0, length)
+        size += length
+        return offset
+    }
+}
+
+/**
+ * A single column of a [RowBatch].
+ *
+ * Values are kept in primitive arrays where the type allows it, with nulls
+ * tracked in a bitmap. Consumers write values straight to their output.
+ *
+ * @property sqlType JDBC type number, used when binding nulls
+ */
+abstract class ColumnVector(val capacity: Int, val sqlType: Int) {
+    private val nulls = BitSet(capacity)
+
+    fun isNull(row: Int): Boolean = nulls.get(row)
+
+    protected fun setNull(row: Int) {
+        nulls.set(row)
+    }
+
+    /**
+     * Read column [ordinal] of the current row of [rs] into slot [row].
+     */
+    abstract fun read(rs: ResultSet, ordinal: Int, row: Int)
+
+    fun get(row: Int): Any? = if (isNull(row)) null else getValue(row)
+
+    fun bind(stmt: PreparedStatement, index: Int, row: Int) {
+        if (isNull(row)) {
+            stmt.setNull(index, sqlType)
+        } else {
+            bindValue(stmt, index, row)
+        }
+    }
+
+    fun writeText(w: Writer, row: Int) {
+        if (!isNull(row)) {
+            writeTextValue(w, row)
+        }
+    }
+
+    fun writeJson(gen: JsonGenerator, row: Int) {
+        if (isNull(row)) {
+            gen.writeNull()
+        } else {
+            writeJsonValue(gen, row)
+        }
+    }
+
+    protected abstract fun getValue(row: Int): Any
+    protected abstract fun bindValue(stmt: PreparedStatement, index: Int, row: Int)
+    protected abstract fun writeTextValue(w: Writer, row: Int)
+    protected abstract fun writeJsonValue(gen: JsonGenerator, row: Int)
+}
+
+class LongVector(capacity: Int, sqlType: Int) : ColumnVector(capacity, sqlType) {
+    val values = LongArray(capacity)
+
+    override fun read(rs: ResultSet, ordinal: Int, row: Int) {
+        val value = rs.getLong(ordinal)
+        if (rs.wasNull()) setNull(row) else values[row] = value
+    }
+
+    override fun getValue(row: Int): Any = values[row]
+    override fun bindValue(stmt: PreparedStatement, index: Int, row: Int) = stmt.setLong(index, values[row])
+    override fun writeTextValue(w: Writer, row: Int) = w.write(java.lang.Long.toString(values[row]))
+    override fun writeJsonValue(gen: JsonGenerator, row: Int) = gen.writeNumber(values[row])
+}
+
+class IntVector(capacity: Int, sqlType: Int) : ColumnVector(capacity, sqlType) {
+    val values = IntArray(capacity)
+
+    override fun read(rs: ResultSet, ordinal: Int, row: Int) {
+        val value = rs.getInt(ordinal)
+        if (rs.wasNull()) setNull(row) else values[row] = value
+    }
+
+    override fun getValue(row: Int): Any = values[row]
+    override fun bindValue(stmt: PreparedStatement, index: Int, row: Int) = stmt.setInt(index, values[row])
+    override fun writeTextValue(w: Writer, row: Int) = w.write(Integer.toString(values[row]))
+    override fun writeJsonValue(gen: JsonGenerator, row: Int) = gen.writeNumber(values[row])
+}
+
+class DoubleVector(capacity: Int, sqlType: Int) : ColumnVector(capacity, sqlType) {
+    val values = DoubleArray(capacity)
+
+    override fun read(rs: ResultSet, ordinal: Int, row: Int) {
+        val value = rs.getDouble(ordinal)
+        if (rs.wasNull()) setNull(row) else values[row] = value
+    }
+
+    override fun getValue(row: Int): Any = values[row]
+    override fun bindValue(stmt: PreparedStatement, index: Int, row: Int) = stmt.setDouble(index, values[row])
+    override fun writeTextValue(w: Writer, row: Int) = w.write(java.lang.Double.toString(values[row]))
+    override fun writeJsonValue(gen: JsonGenerator, row: Int) = gen.writeNumber(values[row])
+}
+
+class FloatVector(capacity: Int, sqlType: Int) : ColumnVector(capacity, sqlType) {
+    val values = FloatArray(capacity)
+
+    override fun read(rs: ResultSet, ordinal: Int, row: Int) {
+        val value = rs.getFloat(ordinal)
+        if (rs.wasNull()) setNull(row) else values[row] = value
+    }
+
+    override fun getValue(row: Int): Any = values[row]
+    override fun bindValue(stmt: PreparedStatement, index: Int, row: Int) = stmt.setFloat(index, values[row])
+    override fun writeTextValue(w: Writer, row: Int) = w.write(java.lang.Float.toString(values[row]))
+    override fun writeJsonValue(gen: JsonGenerator, row: Int) = gen.writeNumber(values[row])
+}
+
+class BooleanVector(capacity: Int, sqlType: Int) : ColumnVector(capacity, sqlType) {
+    val values = BitSet(capacity)
+
+    override fun read(rs: ResultSet, ordinal: Int, row: Int) {
+        val value = rs.getBoolean(ordinal)
+        if (rs.wasNull()) setNull(row) else values.set(row, value)
+    }
+
+    override fun getValue(row: Int): Any = values.get(row)
+    override fun bindValue(stmt: PreparedStatement, index: Int, row: Int) = stmt.setBoolean(index, values.get(row))
+    override fun writeTextValue(w: Writer, row: Int) = w.write(if (values.get(row)) "true" else "false")
+    override fun writeJsonValue(gen: JsonGenerator, row: Int) = gen.writeBoolean(values.get(row))
+}
+
+class StringVector(capacity: Int, sqlType: Int, private val arena: CharArena) : ColumnVector(capacity, sqlType) {
+    val offsets = IntArray(capacity)
+    val lengths = IntArray(capacity)
+
+    override fun read(rs: ResultSet, ordinal: Int, row: Int) {
+        val value = rs.getString(ordinal)
+        if (value == null) {
+            setNull(row)
+        } else {
+            offsets[row] = arena.append(value)
+            lengths[row] = value.length
+        }
+    }
+
+    override fun getValue(row: Int): Any = String(arena.chars, offsets[row], lengths[row])
+    override fun bindValue(stmt: PreparedStatement, index: Int, row: Int) =
+        stmt.setString(index, getValue(row) as String)
+    override fun writeTextValue(w: Writer, row: Int) = w.write(arena.chars, offsets[row], lengths[row])
+    override fun writeJsonValue(gen: JsonGenerator, row: Int) = gen.writeString(arena.chars, offsets[row], lengths[row])
+}
+
+/*
+* Fallback for types without a primitive representation (DECIMAL, binary, temporal, ...)
+*/
+class ObjectVector(capacity: Int, sqlType: Int) : ColumnVector(capacity, sqlType) {
+    val values = arrayOfNulls<Any>(capacity)
+
+    override fun read(rs: ResultSet, ordinal: Int, row: Int) {
+        val value = rs.getObject(ordinal)
+        if (value == null) setNull(row) else values[row] = value
+    }
+
+    override fun getValue(row: Int): Any = values[row]!!
+    override fun bindValue(stmt: PreparedStatement, index: Int, row: Int) = stmt.setObject(index, values[row])
+    override fun writeTextValue(w: Writer, row: Int) = w.write(values[row].toString())
+    override fun writeJsonValue(gen: JsonGenerator, row: Int) = gen.writeObject(values[row])
+}
+
+/**
+ * A batch of up to [capacity] result rows, stored column by column.
+ *
+ * A batch is filled by a single thread and must not be modified once it
+ * has been handed to its consumers.
+ */
+class RowBatch(val columns: Array<ColumnVector>, val capacity: Int) {
+    var size = 0
+
+    val isFull: Boolean
+        get() = size == capacity
+
+    /**
+     * Boxed copy of a single row. Prefer the column accessors in loops.
+     */
+    fun row(row: Int): List<Any?> = columns.map { it.get(row) }
+}
+
+/*
+* Serializes batches as a flat JSON array of rows, without boxing each cell.
+*/
+class RowBatchIteratorSerializer : JsonSerializer<Iterator<RowBatch>>() {
+    override fun serialize(value: Iterator<RowBatch>, gen: JsonGenerator, serializers: SerializerProvider) {
+        gen.writeStartArray()
+        for (batch in value) {
+            val columns = batch.columns
+            for (row in 0 until batch.size) {
+                gen.writeStartArray()
+                for (column in columns) {
+                    column.writeJson(gen, row)
+                }
+                gen.writeEndArray()
+            }
+        }
+        gen.writeEndArray()
+    }
+}
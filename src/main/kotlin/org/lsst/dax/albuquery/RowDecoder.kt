@@ -0,0 +1,107 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.lsst.dax.albuquery
+
+import java.sql.JDBCType
+import java.sql.ResultSet
+
+/*
+* In-memory representation used for a column in a RowBatch.
+*/
+enum class VectorType {
+    LONG, INT, DOUBLE, FLOAT, BOOLEAN, STRING, OBJECT;
+
+    fun create(capacity: Int, sqlType: Int, arena: CharArena): ColumnVector {
+        return when (this) {
+            LONG -> LongVector(capacity, sqlType)
+            INT -> IntVector(capacity, sqlType)
+            DOUBLE -> DoubleVector(capacity, sqlType)
+            FLOAT -> FloatVector(capacity, sqlType)
+            BOOLEAN -> BooleanVector(capacity, sqlType)
+            STRING -> StringVector(capacity, sqlType, arena)
+            OBJECT -> ObjectVector(capacity, sqlType)
+        }
+    }
+}
+
+fun vectorTypeFor(column: JdbcColumnMetadata): VectorType {
+    // Unsigned BIGINT values may not fit in a long; let the driver pick (BigInteger)
+    val unsigned = column.typeName.toUpperCase().contains("UNSIGNED")
+    return when (column.jdbcType) {
+        JDBCType.BIGINT -> if (unsigned) VectorType.OBJECT else VectorType.LONG
+        // Unsigned INTEGER is reported as BIGINT by the driver, so these always fit
+        JDBCType.INTEGER -> if (unsigned) VectorType.LONG else VectorType.INT
+        JDBCType.SMALLINT -> VectorType.INT
+        JDBCType.TINYINT -> VectorType.INT
+        JDBCType.DOUBLE -> VectorType.DOUBLE
+        // JDBC FLOAT is double precision; REAL is the single precision type
+        JDBCType.FLOAT -> VectorType.DOUBLE
+        JDBCType.REAL -> VectorType.FLOAT
+        JDBCType.BOOLEAN -> VectorType.BOOLEAN
+        JDBCType.CHAR -> VectorType.STRING
+        JDBCType.VARCHAR -> VectorType.STRING
+        JDBCType.NCHAR -> VectorType.STRING
+        JDBCType.NVARCHAR -> VectorType.STRING
+        JDBCType.LONGVARCHAR -> VectorType.STRING
+        JDBCType.LONGNVARCHAR -> VectorType.STRING
+        else -> VectorType.OBJECT
+    }
+}
+
+/**
+ * A row decoder plan, built once per query from the JDBC column metadata.
+ *
+ * Every column is read by ordinal into a vector specialized for its type,
+ * so there is no per-cell name lookup in the driver and numeric values are
+ * never boxed.
+ */
+class RowDecoder(columns: List<JdbcColumnMetadata>) {
+    private val types: Array<VectorType> = columns.map { vectorTypeFor(it) }.toTypedArray()
+    private val ordinals: IntArray = columns.map { it.ordinal }.toIntArray()
+    private val sqlTypes: IntArray = columns.map { it.jdbcType.vendorTypeNumber }.toIntArray()
+
+    val columnCount: Int
+        get() = types.size
+
+    fun newBatch(capacity: Int): RowBatch {
+        val arena = CharArena(capacity * ARENA_CHARS_PER_ROW)
+        val vectors = Array(types.size) { i -> types[i].create(capacity, sqlTypes[i], arena) }
+        return RowBatch(vectors, capacity)
+    }
+
+    /**
+     * Decode the current row of [rs] into the next free slot of [batch].
+     */
+    fun decodeInto(rs: ResultSet, batch: RowBatch) {
+        val row = batch.size
+        val columns = batch.columns
+        for (i in columns.indices) {
+            columns[i].read(rs, ordinals[i], row)
+        }
+        batch.size = row + 1
+    }
+
+    companion object {
+        private const val ARENA_CHARS_PER_ROW = 32
+    }
+}
@@ -22,13 +22,31 @@
 
 package org.lsst.dax.albuquery
 
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry
+import io.dropwizard.lifecycle.Managed
+import org.apache.tomcat.jdbc.pool.DataSource
+import org.apache.tomcat.jdbc.pool.PoolProperties
 import org.slf4j.LoggerFactory
 import java.net.URI
 import java.sql.Connection
-import java.sql.DriverManager
+import java.util.concurrent.ConcurrentHashMap
 
-class ServiceAccountConnections(serviceAccountCredentials: List<Credential>) {
+/**
+ * Pooled connections to database instances, using the service account
+ * credentials of each instance.
+ *
+ * There is one pool per host, port and default schema, so a borrowed
+ * connection is always in the schema of the requested URI. Should a
+ * borrower switch schemas, the pool switches back when the connection is
+ * next borrowed.
+ */
+open class ServiceAccountConnections(
+    serviceAccountCredentials: List<Credential>,
+    val poolConfig: BackendPoolConfiguration = BackendPoolConfiguration()
+) : Managed {
     val hostPortMap: HashMap<String, Credential> = hashMapOf()
+    private val pools = ConcurrentHashMap<String, DataSource>()
 
     init {
         for (credential in serviceAccountCredentials) {
@@ -36,12 +54,62 @@ class ServiceAccountConnections(serviceAccountCredentials: List<Credential>) {
         }
     }
 
-    fun getConnection(connectionUri: URI): Connection {
+    open fun getConnection(connectionUri: URI): Connection {
         LOGGER.debug("Getting connection for URI: $connectionUri")
+        val key = connectionUri.host + connectionUri.port
+        val schema = connectionUri.path?.trimStart('/') ?: ""
+        val pool = pools.computeIfAbsent("$key/$schema") { createPool(connectionUri, schema, hostPortMap[key]) }
+        return pool.connection
+    }
+
+    private fun createPool(connectionUri: URI, schema: String, credential: Credential?): DataSource {
         // FIXME: Can't do much about this for now unless we store passwords in the db
-        val uri = "jdbc:" + connectionUri
-        val credential = hostPortMap[connectionUri.host + connectionUri.port]
-        return DriverManager.getConnection(uri, credential?.username, credential?.password)
+        val properties = PoolProperties()
+        properties.url = "jdbc:${connectionUri.scheme}://${connectionUri.host}:${connectionUri.port}/$schema"
+        if (!schema.isEmpty()) {
+            // Restored by the ConnectionState interceptor when a connection is borrowed
+            properties.defaultCatalog = schema
+        }
+        properties.driverClassName = "org.mariadb.jdbc.Driver"
+        properties.username = credential?.username
+        properties.password = credential?.password
+        properties.minIdle = poolConfig.minIdle
+        properties.initialSize = poolConfig.minIdle
+        properties.maxIdle = poolConfig.maxIdle
+        properties.maxActive = poolConfig.maxActive
+        properties.maxWait = poolConfig.maxWaitMs
+        properties.maxAge = poolConfig.maxLifetimeMs
+        properties.isTestOnBorrow = true
+        properties.validationQuery = poolConfig.validationQuery
+        properties.validationInterval = poolConfig.validationIntervalMs
+        // Only log suspected leaks, long queries are legitimate
+        properties.isRemoveAbandoned = false
+        properties.isLogAbandoned = true
+        properties.suspectTimeout = poolConfig.leakDetectionSeconds
+        properties.jdbcInterceptors = "ConnectionState;StatementFinalizer"
+        val pool = DataSource(properties)
+        registerMetrics(connectionUri, schema, pool)
+        LOGGER.info("Created connection pool for ${properties.url}")
+        return pool
+    }
+
+    private fun registerMetrics(connectionUri: URI, schema: String, pool: DataSource) {
+        val prefix = MetricRegistry.name(ServiceAccountConnections::class.java,
+            "${connectionUri.host}:${connectionUri.port}", schema)
+        METRICS.register(MetricRegistry.name(prefix, "active"), Gauge<Int> { pool.active })
+        METRICS.register(MetricRegistry.name(prefix, "idle"), Gauge<Int> { pool.idle })
+        METRICS.register(MetricRegistry.name(prefix, "size"), Gauge<Int> { pool.size })
+        METRICS.register(MetricRegistry.name(prefix, "waiting"), Gauge<Int> { pool.waitCount })
+    }
+
+    override fun start() {
+    }
+
+    override fun stop() {
+        for (pool in pools.values) {
+            pool.close()
+        }
+        pools.clear()
     }
 
     companion object {
@@ -22,4 +22,63 @@
 
 package org.lsst.dax.albuquery.dao
 
-// TODO: Write History DAO
+import org.jdbi.v3.sqlobject.customizer.Bind
+import org.jdbi.v3.sqlobject.customizer.BindBean
+import org.jdbi.v3.sqlobject.statement.SqlQuery
+import org.jdbi.v3.sqlobject.statement.SqlUpdate
+import org.lsst.dax.albuquery.model.history.Job
+
+// Records of jobs, in the job database of the service
+interface HistoryDAO {
+
+    @SqlUpdate("create table if not exists job (" +
+        "query_id text primary key, owner text not null, phase text not null, parameters text not null, " +
+        "format text not null, error_file text not null, execution_duration integer not null, " +
+        "created_at integer not null, finished_at integer, accessed_at integer, destruction_at integer not null)")
+    fun createJobTable()
+
+    @SqlQuery("select name from pragma_table_info('job')")
+    fun findJobColumns(): List<String>
+
+    // Tables created before jobs had an access time
+    @SqlUpdate("alter table job add column accessed_at integer")
+    fun addJobAccessedAt()
+
+    // Tables created before jobs had a destruction time. Those jobs are given one by setMissingDestruction.
+    @SqlUpdate("alter table job add column destruction_at integer")
+    fun addJobDestructionAt()
+
+    @SqlUpdate("update job set destruction_at = created_at + :ttl where destruction_at is null")
+    fun setMissingDestruction(@Bind("ttl") ttlMillis: Long)
+
+    @SqlUpdate("create index if not exists job_finished_at on job (finished_at)")
+    fun createJobFinishedIndex()
+
+    @SqlUpdate("insert or replace into job " +
+        "(query_id, owner, phase, parameters, format, error_file, execution_duration, created_at, finished_at, " +
+        "accessed_at, destruction_at) " +
+        "values (:queryId, :owner, :phase, :parameters, :format, :errorFile, :executionDuration, :createdAt, " +
+        ":finishedAt, :accessedAt, :destructionAt)")
+    fun saveJob(@BindBean job: Job)
+
+    @SqlQuery("select * from job where query_id = ?")
+    fun findJob(queryId: String): Job?
+
+    @SqlQuery("select * from job where finished_at is not null")
+    fun findFinishedJobs(): List<Job>
+
+    @SqlQuery("select query_id from job")
+    fun findJobIds(): List<String>
+
+    @SqlUpdate("update job set accessed_at = :time where query_id = :queryId")
+    fun touchJob(@Bind("queryId") queryId: String, @Bind("time") time: Long)
+
+    @SqlUpdate("delete from job where query_id = ?")
+    fun deleteJob(queryId: String)
+
+    /**
+     * Jobs without a finish time were cut short by a restart of the service.
+     */
+    @SqlUpdate("update job set phase = :phase, finished_at = :time where finished_at is null")
+    fun finishInterruptedJobs(@Bind("phase") phase: String, @Bind("time") time: Long): Int
+}
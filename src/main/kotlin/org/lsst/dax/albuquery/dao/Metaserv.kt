@@ -22,6 +22,8 @@
 
 package org.lsst.dax.albuquery.dao
 
+import org.jdbi.v3.sqlobject.customizer.Bind
+import org.jdbi.v3.sqlobject.customizer.BindList
 import org.jdbi.v3.sqlobject.statement.SqlQuery
 import org.lsst.dax.albuquery.model.metaserv.Column
 import org.lsst.dax.albuquery.model.metaserv.Database
@@ -42,4 +44,37 @@ interface MetaservDAO {
 
     @SqlQuery("select * from MSDatabaseColumn where table_id = ?")
     fun findColumnsByTableId(talbleId: Int): List<Column>
+
+    @SqlQuery("select t.*, s.name as schema_name from MSDatabaseTable t " +
+        "join MSDatabaseSchema s on s.id = t.schema_id " +
+        "join MSDatabase d on d.id = s.db_id " +
+        "where d.name = :databaseName and s.is_default_schema = 1 and t.name in (<tableNames>)")
+    fun findTablesByDatabaseName(
+        @Bind("databaseName") databaseName: String,
+        @BindList("tableNames") tableNames: List<String>
+    ): List<Table>
+
+    @SqlQuery("select * from MSDatabaseColumn where table_id in (<tableIds>)")
+    fun findColumnsByTableIds(@BindList("tableIds") tableIds: List<Int>): List<Column>
+
+    /**
+     * Find the named tables in the default schema of a database, along
+     * with their columns, keyed by table name. Both queries run on the
+     * same handle.
+     */
+    fun findTablesWithColumns(databaseName: String, tableNames: List<String>):
+        Map<String, Pair<Table, List<Column>>> {
+        if (tableNames.isEmpty()) {
+            return mapOf()
+        }
+        val tables = findTablesByDatabaseName(databaseName, tableNames)
+        if (tables.isEmpty()) {
+            return mapOf()
+        }
+        val columnsByTableId = findColumnsByTableIds(tables.map { it.id }).groupBy { it.table_id }
+        return tables.associate { table ->
+            val columns = columnsByTableId[table.id].orEmpty().map { it.copy(tableName = table.name) }
+            table.name to Pair(table, columns)
+        }
+    }
 }
@@ -0,0 +1,170 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.lsst.dax.albuquery.dao
+
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry
+import com.google.common.cache.CacheBuilder
+import com.google.common.cache.CacheLoader
+import com.google.common.cache.LoadingCache
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import org.lsst.dax.albuquery.MetaservCacheConfiguration
+import org.lsst.dax.albuquery.model.metaserv.Column
+import org.lsst.dax.albuquery.model.metaserv.Database
+import org.lsst.dax.albuquery.model.metaserv.Schema
+import org.lsst.dax.albuquery.model.metaserv.Table
+import org.slf4j.LoggerFactory
+import java.util.Optional
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * A [MetaservDAO] which caches the metadata returned by another DAO.
+ *
+ * Entries are refreshed in the background once they are older than the
+ * refresh interval, while the stale value is still served, and are
+ * dropped once they are older than the TTL. Cached entities are shared,
+ * so callers must not modify them.
+ */
+class MetaservCache(
+    val delegate: MetaservDAO,
+    config: MetaservCacheConfiguration = MetaservCacheConfiguration()
+) : MetaservDAO {
+
+    private val refreshExecutor = Executors.newSingleThreadExecutor(
+        ThreadFactoryBuilder().setNameFormat("metaserv-refresh-%d").setDaemon(true).build())
+
+    private val builder = CacheBuilder.newBuilder()
+        .maximumSize(config.maximumSize)
+        .expireAfterWrite(config.ttlSeconds, TimeUnit.SECONDS)
+        .refreshAfterWrite(config.refreshSeconds, TimeUnit.SECONDS)
+        .recordStats()
+
+    // Guava caches can't hold null, so missing entities are cached as empty
+    private val databases: LoadingCache<String, Optional<Database>> =
+        build { name -> Optional.ofNullable(delegate.findDatabaseByName(name)) }
+
+    private val defaultSchemas: LoadingCache<Int, Optional<Schema>> =
+        build { dbId -> Optional.ofNullable(delegate.findDefaultSchemaByDatabaseId(dbId)) }
+
+    private val tables: LoadingCache<Int, Optional<List<Table>>> =
+        build { schemaId -> Optional.ofNullable(delegate.findTablesBySchemaId(schemaId)) }
+
+    private val columns: LoadingCache<Int, List<Column>> =
+        build { tableId -> delegate.findColumnsByTableId(tableId) }
+
+    private data class TableKey(val databaseName: String, val tableName: String)
+
+    // Loaded with one batched lookup per database for the tables missing from the cache
+    private val tablesWithColumns: LoadingCache<TableKey, Optional<Pair<Table, List<Column>>>> =
+        builder.build(CacheLoader.asyncReloading(object : CacheLoader<TableKey, Optional<Pair<Table, List<Column>>>>() {
+            override fun load(key: TableKey): Optional<Pair<Table, List<Column>>> {
+                return loadAll(listOf(key)).getValue(key)
+            }
+
+            override fun loadAll(keys: Iterable<TableKey>): Map<TableKey, Optional<Pair<Table, List<Column>>>> {
+                val loaded = hashMapOf<TableKey, Optional<Pair<Table, List<Column>>>>()
+                for ((databaseName, databaseKeys) in keys.groupBy { it.databaseName }) {
+                    val found = delegate.findTablesWithColumns(databaseName, databaseKeys.map { it.tableName })
+                    for (key in databaseKeys) {
+                        loaded[key] = Optional.ofNullable(found[key.tableName])
+                    }
+                }
+                return loaded
+            }
+        }, refreshExecutor))
+
+    private val caches = mapOf<String, LoadingCache<*, *>>(
+        "databases" to databases,
+        "defaultSchemas" to defaultSchemas,
+        "tables" to tables,
+        "columns" to columns,
+        "tablesWithColumns" to tablesWithColumns
+    )
+
+    private fun <K : Any, V : Any> build(loadFunction: (K) -> V): LoadingCache<K, V> {
+        val loader = object : CacheLoader<K, V>() {
+            override fun load(key: K): V = loadFunction(key)
+        }
+        return builder.build(CacheLoader.asyncReloading(loader, refreshExecutor))
+    }
+
+    override fun findDatabaseByName(name: String): Database? {
+        return databases.getUnchecked(name).orElse(null)
+    }
+
+    override fun findDefaultSchemaByDatabaseId(dbId: Int): Schema? {
+        return defaultSchemas.getUnchecked(dbId).orElse(null)
+    }
+
+    override fun findTablesBySchemaId(schemaId: Int): List<Table>? {
+        return tables.getUnchecked(schemaId).orElse(null)
+    }
+
+    override fun findColumnsByTableId(talbleId: Int): List<Column> {
+        return columns.getUnchecked(talbleId)
+    }
+
+    override fun findTablesByDatabaseName(databaseName: String, tableNames: List<String>): List<Table> {
+        return delegate.findTablesByDatabaseName(databaseName, tableNames)
+    }
+
+    override fun findColumnsByTableIds(tableIds: List<Int>): List<Column> {
+        return delegate.findColumnsByTableIds(tableIds)
+    }
+
+    override fun findTablesWithColumns(databaseName: String, tableNames: List<String>):
+        Map<String, Pair<Table, List<Column>>> {
+        val found = tablesWithColumns.getAll(tableNames.map { TableKey(databaseName, it) })
+        val result = linkedMapOf<String, Pair<Table, List<Column>>>()
+        for ((key, value) in found) {
+            if (value.isPresent) {
+                result[key.tableName] = value.get()
+            }
+        }
+        return result
+    }
+
+    /**
+     * Drop every cached entry, so the next lookups go to metaserv.
+     */
+    fun invalidateAll() {
+        for (cache in caches.values) {
+            cache.invalidateAll()
+        }
+        LOGGER.info("Invalidated metaserv cache")
+    }
+
+    fun registerMetrics(metrics: MetricRegistry) {
+        for ((name, cache) in caches) {
+            val prefix = MetricRegistry.name(MetaservCache::class.java, name)
+            metrics.register(MetricRegistry.name(prefix, "size"), Gauge<Long> { cache.size() })
+            metrics.register(MetricRegistry.name(prefix, "hits"), Gauge<Long> { cache.stats().hitCount() })
+            metrics.register(MetricRegistry.name(prefix, "misses"), Gauge<Long> { cache.stats().missCount() })
+        }
+    }
+
+    companion object {
+        private val LOGGER = LoggerFactory.getLogger(MetaservCache::class.java)
+    }
+}
@@ -22,4 +22,27 @@
 
 package org.lsst.dax.albuquery.model.history
 
-// TODO: Write History Model
+import org.jdbi.v3.core.mapper.reflect.ColumnName
+
+/**
+ * The record kept of a job, once it's no longer held in memory.
+ *
+ * @property phase Name of an [org.lsst.dax.albuquery.ExecutionPhase]
+ * @property createdAt Creation time, in milliseconds since the epoch
+ * @property finishedAt Time the job finished, in milliseconds since the epoch
+ * @property accessedAt Time the results were last retrieved, in milliseconds since the epoch
+ * @property destructionAt Time the job is destroyed, in milliseconds since the epoch
+ */
+data class Job(
+    @ColumnName("query_id") val queryId: String,
+    val owner: String,
+    val phase: String,
+    val parameters: String,
+    val format: String,
+    @ColumnName("error_file") val errorFile: String,
+    @ColumnName("execution_duration") val executionDuration: Long,
+    @ColumnName("created_at") val createdAt: Long,
+    @ColumnName("finished_at") val finishedAt: Long?,
+    @ColumnName("accessed_at") val accessedAt: Long?,
+    @ColumnName("destruction_at") val destructionAt: Long
+)
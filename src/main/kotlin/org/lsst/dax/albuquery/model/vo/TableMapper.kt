@@ -28,6 +28,7 @@ import com.fasterxml.jackson.databind.ObjectMapper
 
 import org.lsst.dax.albuquery.ErrorResponse
 import org.lsst.dax.albuquery.ColumnMetadata
+import org.lsst.dax.albuquery.RowBatch
 import org.lsst.dax.albuquery.resources.Async.AsyncResponse
 
 fun writeField(w: Writer, field: ColumnMetadata) {
@@ -35,18 +36,25 @@ fun writeField(w: Writer, field: ColumnMetadata) {
     str.append("name=\"${field.name}\" ")
     str.append("ucd=\"${field.ucd}\" ")
     str.append("datatype=\"${field.datatype}\" ")
+    if (field.arraysize != null) {
+        str.append("arraysize=\"${field.arraysize}\" ")
+    }
     str.append("unit=\"${field.unit}\">")
     str.append("<DESCRIPTION>${field.description}</DESCRIPTION></FIELD>")
     w.write(str.toString())
 }
 
-fun writeRow(w: Writer, row: List<Any?>) {
-    var str = StringBuilder("<TR>")
-    for (col in row) {
-        str.append("<TD>$col</TD>")
+fun writeRows(w: Writer, batch: RowBatch) {
+    val columns = batch.columns
+    for (row in 0 until batch.size) {
+        w.write("<TR>")
+        for (column in columns) {
+            w.write("<TD>")
+            column.writeText(w, row)
+            w.write("</TD>")
+        }
+        w.write("</TR>")
     }
-    str.append("</TR>")
-    w.write(str.toString())
 }
 
 class TableMapper() : ObjectMapper() {
@@ -67,7 +75,7 @@ class TableMapper() : ObjectMapper() {
         if (entity !is AsyncResponse) return
         val ar = entity
         var fields: List<ColumnMetadata> = ar.metadata.columns
-        var rowIterator: Iterator<List<Any?>> = ar.results
+        var rowIterator: Iterator<RowBatch> = ar.results
         str = StringBuilder("<?xml version=\"1.0\"?>")
         str.append("<VOTABLE version=\"1.3\" xmlns=\"http://www.ivoa.net/xml/VOTable/v1.3\">")
         str.append("<RESOURCE name=\"Result for query: ${ar.queryId}")
@@ -80,11 +88,15 @@ class TableMapper() : ObjectMapper() {
         }
         w.write("<DATA><TABLEDATA>")
         // process the data rows
-        for (row in rowIterator) {
-            writeRow(w, row)
+        for (batch in rowIterator) {
+            writeRows(w, batch)
         }
         str = StringBuilder("</TABLEDATA></DATA>")
-        str.append("</TABLE></RESOURCE></VOTABLE>")
+        str.append("</TABLE>")
+        if (ar.overflow) {
+            str.append("<INFO name=\"QUERY_STATUS\" value=\"OVERFLOW\"/>")
+        }
+        str.append("</RESOURCE></VOTABLE>")
         w.write(str.toString())
         w.close()
     }
@@ -24,35 +24,43 @@ package org.lsst.dax.albuquery.resources
 
 import com.codahale.metrics.annotation.Timed
 import com.facebook.presto.sql.parser.ParsingException
-import com.facebook.presto.sql.parser.ParsingOptions
-import com.facebook.presto.sql.parser.SqlParser
-import com.facebook.presto.sql.tree.Query
-import com.facebook.presto.sql.tree.ShowColumns
-import com.facebook.presto.sql.tree.Statement
+import com.fasterxml.jackson.annotation.JsonPropertyOrder
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.fasterxml.jackson.databind.annotation.JsonSerialize
 import com.fasterxml.jackson.module.kotlin.KotlinModule
-import org.lsst.dax.albuquery.Analyzer
+import org.glassfish.jersey.server.ChunkedOutput
 import org.lsst.dax.albuquery.CONFIG
+import org.lsst.dax.albuquery.DEFAULT_PROGRESS_INTERVAL_MS
+import org.lsst.dax.albuquery.DEFAULT_RESULT_WAIT_TIMEOUT
+import org.lsst.dax.albuquery.RESPONSE_EXECUTOR
 import org.lsst.dax.albuquery.ColumnMetadata
-import org.lsst.dax.albuquery.EXECUTOR
 import org.lsst.dax.albuquery.ErrorResponse
-import org.lsst.dax.albuquery.ParsedTable
+import org.lsst.dax.albuquery.ExecutionPhase
+import org.lsst.dax.albuquery.JOB_STORE
+import org.lsst.dax.albuquery.JobStoreConfiguration
+import org.lsst.dax.albuquery.NotSelectStatementException
+import org.lsst.dax.albuquery.PreparedQuery
+import org.lsst.dax.albuquery.QUERY_CACHE
+import org.lsst.dax.albuquery.QUERY_SCHEDULER
+import org.lsst.dax.albuquery.RowBatch
+import org.lsst.dax.albuquery.RowBatchIteratorSerializer
+import org.lsst.dax.albuquery.RowStreamIterator
 import org.lsst.dax.albuquery.dao.MetaservDAO
-import org.lsst.dax.albuquery.rewrite.TableNameRewriter
 import org.lsst.dax.albuquery.tasks.QueryTask
 import org.lsst.dax.albuquery.vo.TableMapper
 import org.slf4j.LoggerFactory
 import java.io.File
 import java.net.URI
 import java.nio.file.Paths
+import java.time.Instant
+import java.time.format.DateTimeParseException
 import java.util.UUID
 import javax.ws.rs.core.MediaType
 import javax.ws.rs.core.Context
 import javax.ws.rs.core.Response
-import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.Future
 import java.util.concurrent.TimeUnit
+import java.util.function.Consumer
+import javax.ws.rs.DELETE
 import javax.ws.rs.FormParam
 import javax.ws.rs.GET
 import javax.ws.rs.Path
@@ -60,18 +68,26 @@ import javax.ws.rs.POST
 import javax.ws.rs.PathParam
 import javax.ws.rs.Produces
 import javax.ws.rs.QueryParam
+import javax.ws.rs.container.Suspended
+import javax.ws.rs.container.AsyncResponse as SuspendedResponse
 import javax.ws.rs.core.UriInfo
 import javax.ws.rs.core.HttpHeaders
+import javax.ws.rs.core.SecurityContext
 
 @Path("async")
 class Async(val metaservDAO: MetaservDAO) {
 
+    // overflow is only known once the results have been written
+    @JsonPropertyOrder("queryId", "metadata", "results", "overflow")
     data class AsyncResponse(
         val queryId: String,
         val metadata: ResponseMetadata,
-        // Annotation is Workaround for https://github.com/FasterXML/jackson-module-kotlin/issues/4
-        @JsonSerialize(`as` = java.util.Iterator::class) val results: Iterator<List<Any?>>
-    )
+        @JsonSerialize(using = RowBatchIteratorSerializer::class) val results: Iterator<RowBatch>
+    ) {
+        // Whether rows were left out because of MAXREC
+        val overflow: Boolean
+            get() = (results as? RowStreamIterator)?.overflow ?: false
+    }
 
     data class ResponseMetadata(val columns: List<ColumnMetadata>)
 
@@ -79,15 +95,27 @@ class Async(val metaservDAO: MetaservDAO) {
     lateinit var uri: UriInfo
     @Context
     lateinit var headers: HttpHeaders
+    @Context
+    lateinit var securityContext: SecurityContext
 
     @POST
     fun createQuery(
         @QueryParam("QUERY") @FormParam("QUERY") queryParam: String?,
         @QueryParam("RESPONSEFORMAT") @FormParam("RESPONSEFORMAT") formatParam: String?,
+        @QueryParam("MAXREC") @FormParam("MAXREC") maxrecParam: Long?,
+        @QueryParam("EXECUTIONDURATION") @FormParam("EXECUTIONDURATION") executionDurationParam: Long?,
+        @QueryParam("DESTRUCTION") @FormParam("DESTRUCTION") destructionParam: String?,
         postBody: String
     ): Response {
         val query = queryParam ?: postBody
         val format = formatParam ?: ""
+        val destruction: Long?
+        try {
+            destruction = destructionParam?.let { Instant.parse(it).toEpochMilli() }
+        } catch (ex: DateTimeParseException) {
+            val err = ErrorResponse("DESTRUCTION must be an ISO 8601 time", ex.javaClass.simpleName, null, ex.message)
+            return Response.status(Response.Status.BAD_REQUEST).entity(err).build()
+        }
         LOGGER.info("Recieved query [$query]")
         var mapper: ObjectMapper? = null
         val ct = headers.getRequestHeader(HttpHeaders.ACCEPT).get(0)
@@ -95,31 +123,51 @@ class Async(val metaservDAO: MetaservDAO) {
             mapper = ObjectMapper().registerModule(KotlinModule())
         if (mapper == null)
             mapper = TableMapper() // default is VOTable
-        return createAsyncQuery(metaservDAO, uri, query, mapper, true)
+        return createAsyncQuery(metaservDAO, uri, query, mapper, true, ownerOf(securityContext, headers), maxrecParam,
+            executionDurationParam, destruction)
     }
 
     @GET
     @Path("{id}")
     @Produces(MediaType.APPLICATION_JSON)
-    fun getQueryId(@PathParam("id") queryId: String): Response {
-        val queryTaskFuture = findOutstandingQuery(queryId)
-        if (queryTaskFuture != null) {
-            val queryTask = queryTaskFuture.get(1, TimeUnit.MILLISECONDS)
-            val ret = queryTask.phaseInfo.toString()
-            return Response.ok(ret).build()
-        } else {
-            return Response.status(Response.Status.NOT_FOUND).build()
+    fun getQueryId(
+        @PathParam("id") queryId: String,
+        @QueryParam("WAIT") waitParam: Long?,
+        @QueryParam("PHASE") phaseParam: String?,
+        @Suspended suspendedResponse: SuspendedResponse
+    ) {
+        val phaseInfo = JOB_STORE.findPhaseInfo(queryId)
+        if (phaseInfo == null) {
+            suspendedResponse.resume(Response.status(Response.Status.NOT_FOUND).build())
+            return
+        }
+        val phase = phaseInfo.phase
+        // UWS WAIT: block until the phase changes, unless the query has finished
+        // or isn't in the given PHASE. A negative WAIT is the longest wait allowed.
+        val maxWait = CONFIG?.DAX_RESULT_WAIT_TIMEOUT ?: DEFAULT_RESULT_WAIT_TIMEOUT
+        val wait = if (waitParam != null && waitParam < 0) maxWait else minOf(waitParam ?: 0, maxWait)
+        if (wait == 0L || phase.isFinished || (phaseParam != null && !phaseParam.equals(phase.name, true))) {
+            suspendedResponse.resume(Response.ok(phaseInfo.toString()).build())
+            return
         }
+        val changed = phaseInfo.awaitChange(phase)
+        suspendedResponse.setTimeout(wait, TimeUnit.SECONDS)
+        suspendedResponse.setTimeoutHandler {
+            changed.cancel(false)
+            it.resume(Response.ok(phaseInfo.toString()).build())
+        }
+        changed.thenRunAsync(Runnable {
+            suspendedResponse.resume(Response.ok(phaseInfo.toString()).build())
+        }, RESPONSE_EXECUTOR)
     }
 
     @GET
     @Path("{id}/parameters")
     @Produces(MediaType.APPLICATION_JSON)
     fun getQueryParams(@PathParam("id") queryId: String): Response {
-        val queryTaskFuture = findOutstandingQuery(queryId)
-        if (queryTaskFuture != null) {
-            val queryTask = queryTaskFuture.get(1, TimeUnit.MILLISECONDS)
-            val params = queryTask.phaseInfo.parameters
+        val phaseInfo = JOB_STORE.findPhaseInfo(queryId)
+        if (phaseInfo != null) {
+            val params = phaseInfo.parameters
             val ret = "{ 'QUERY': '$params' }"
             return Response.ok(ret).build()
         } else {
@@ -131,10 +179,9 @@ class Async(val metaservDAO: MetaservDAO) {
     @Path("{id}/error")
     @Produces(MediaType.APPLICATION_JSON)
     fun getQueryStatus(@PathParam("id") queryId: String): Response {
-        val queryTaskFuture = findOutstandingQuery(queryId)
-        if (queryTaskFuture != null) {
-            val queryTask = queryTaskFuture.get(1, TimeUnit.MILLISECONDS)
-            val errorFile = queryTask.phaseInfo.errorFile
+        val phaseInfo = JOB_STORE.findPhaseInfo(queryId)
+        if (phaseInfo != null) {
+            val errorFile = phaseInfo.errorFile
             if (errorFile == "")
                 return Response.ok("{ 'ERROR': 'None' }").build()
             else {
@@ -153,8 +200,7 @@ class Async(val metaservDAO: MetaservDAO) {
     @Path("{id}/results")
     @Produces(MediaType.APPLICATION_JSON)
     fun getQueryResults(@PathParam("id") queryId: String): Response {
-        val queryTaskFuture = findOutstandingQuery(queryId)
-        if (queryTaskFuture != null) {
+        if (JOB_STORE.findPhaseInfo(queryId) != null) {
             val resultUri = getResultUri(uri, queryId, true)
             val ret = "{ 'RESULT': '$resultUri' }"
             return Response.ok(ret).build()
@@ -169,25 +215,51 @@ class Async(val metaservDAO: MetaservDAO) {
     @Produces( MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON )
     fun getQueryResult(
         @PathParam("id") queryId: String,
-        @QueryParam("RESPONSEFORMAT") formatParam: String?
-    ): Response {
+        @QueryParam("RESPONSEFORMAT") formatParam: String?,
+        @Suspended suspendedResponse: SuspendedResponse
+    ) {
         val format = formatParam ?: ""
-        val queryTaskFuture = findOutstandingQuery(queryId)
-        if (queryTaskFuture != null && !queryTaskFuture.isDone()) {
-            // Block until completion
-            queryTaskFuture.get()
-        } else return Response.status(Response.Status.NOT_FOUND).build()
-        val resultFile = getResultFile(queryId, "result")
+        val queryTask = JOB_STORE.findTask(queryId)
+        if (queryTask == null && JOB_STORE.findPhaseInfo(queryId) == null) {
+            suspendedResponse.resume(Response.status(Response.Status.NOT_FOUND).build())
+            return
+        }
         var mt: String = MediaType.APPLICATION_XML // default
-        if (resultFile.exists()) {
-            if (format.contains("json"))
+        if (format.contains("json"))
+            mt = MediaType.APPLICATION_JSON
+        else {
+            // Request headers can't be read once the request thread has been released
+            val ct = headers.getRequestHeader(HttpHeaders.ACCEPT).get(0)
+            if (ct.contains("json"))
                 mt = MediaType.APPLICATION_JSON
-            else {
-                val ct = headers.getRequestHeader(HttpHeaders.ACCEPT).get(0)
-                if (ct.contains("json"))
-                    mt = MediaType.APPLICATION_JSON
-            }
-            return Response.ok(resultFile, mt).build()
+        }
+        val range = headers.getHeaderString(RANGE)
+        val ifRange = headers.getHeaderString(IF_RANGE)
+        if (queryTask == null) {
+            // No longer in memory, so it has finished
+            suspendedResponse.resume(createResultResponse(queryId, mt, range, ifRange))
+            return
+        }
+        // Don't hold a request thread while the query runs
+        val waitTimeout = CONFIG?.DAX_RESULT_WAIT_TIMEOUT ?: DEFAULT_RESULT_WAIT_TIMEOUT
+        suspendedResponse.setTimeout(waitTimeout, TimeUnit.SECONDS)
+        suspendedResponse.setTimeoutHandler {
+            it.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS)
+                .build())
+        }
+        // The response is written by the thread resuming it, which mustn't be a query worker
+        queryTask.finished.thenAcceptAsync(Consumer {
+            suspendedResponse.resume(createResultResponse(queryId, mt, range, ifRange))
+        }, RESPONSE_EXECUTOR)
+    }
+
+    private fun createResultResponse(queryId: String, mt: String, range: String?, ifRange: String?): Response {
+        val resultFile = getResultFile(queryId, "result")
+        if (resultFile.exists()) {
+            // Recently retrieved results are the last to be evicted
+            JOB_STORE.touch(queryId)
+            return FileRegion.response(resultFile, mt, range, ifRange)
         }
         val errorFile = getResultFile(queryId, "error")
         if (errorFile.exists()) {
@@ -196,13 +268,80 @@ class Async(val metaservDAO: MetaservDAO) {
         return Response.status(Response.Status.NOT_FOUND).build()
     }
 
-    private fun findOutstandingQuery(queryId: String): Future<QueryTask>? {
-        return OUTSTANDING_QUERY_DATABASE[queryId]
+    @GET
+    @Path("{id}/progress")
+    @Produces(ProgressStream.SERVER_SENT_EVENTS)
+    fun getQueryProgress(@PathParam("id") queryId: String): Response {
+        // Only jobs in memory report progress
+        val queryTask = JOB_STORE.findTask(queryId) ?: return Response.status(Response.Status.NOT_FOUND).build()
+        // Written from the progress executor, the request thread returns right away
+        val output = ChunkedOutput<String>(String::class.java)
+        ProgressStream(queryTask, output, CONFIG?.DAX_PROGRESS_INTERVAL_MS ?: DEFAULT_PROGRESS_INTERVAL_MS).start()
+        return Response.ok(output).build()
+    }
+
+    @GET
+    @Path("{id}/executionduration")
+    @Produces(MediaType.TEXT_PLAIN)
+    fun getExecutionDuration(@PathParam("id") queryId: String): Response {
+        val job = JOB_STORE.findJob(queryId)
+        if (job != null) {
+            return Response.ok(job.executionDuration.toString()).build()
+        } else {
+            return Response.status(Response.Status.NOT_FOUND).build()
+        }
+    }
+
+    @GET
+    @Path("{id}/destruction")
+    @Produces(MediaType.TEXT_PLAIN)
+    fun getDestruction(@PathParam("id") queryId: String): Response {
+        val job = JOB_STORE.findJob(queryId)
+        if (job != null) {
+            return Response.ok(Instant.ofEpochMilli(job.destructionAt).toString()).build()
+        } else {
+            return Response.status(Response.Status.NOT_FOUND).build()
+        }
+    }
+
+    @POST
+    @Path("{id}/phase")
+    fun setPhase(
+        @PathParam("id") queryId: String,
+        @QueryParam("PHASE") @FormParam("PHASE") phaseParam: String?
+    ): Response {
+        val queryTask = JOB_STORE.findTask(queryId)
+        if (queryTask == null && JOB_STORE.findPhaseInfo(queryId) == null) {
+            return Response.status(Response.Status.NOT_FOUND).build()
+        }
+        when (phaseParam?.toUpperCase()) {
+            // Jobs no longer in memory have finished
+            "ABORT" -> queryTask?.abort()
+            // Queries are run as soon as they are created
+            "RUN" -> {}
+            else -> {
+                val err = ErrorResponse("PHASE must be RUN or ABORT", "IllegalArgumentException", null, null)
+                return Response.status(Response.Status.BAD_REQUEST).entity(err).build()
+            }
+        }
+        return Response.seeOther(getResultUri(uri, queryId, false)).build()
+    }
+
+    @DELETE
+    @Path("{id}")
+    fun deleteQuery(@PathParam("id") queryId: String): Response {
+        if (!JOB_STORE.delete(queryId)) {
+            return Response.status(Response.Status.NOT_FOUND).build()
+        }
+        return Response.seeOther(uri.baseUriBuilder.path(Async::class.java).build()).build()
     }
 
     companion object {
         private val LOGGER = LoggerFactory.getLogger(Async::class.java)
-        val OUTSTANDING_QUERY_DATABASE = ConcurrentHashMap<String, Future<QueryTask>>()
+        // Seconds a client is told to wait before asking for a result again
+        private const val RETRY_AFTER_SECONDS = 10
+        private const val RANGE = "Range"
+        private const val IF_RANGE = "If-Range"
 
         @Timed
         fun createAsyncQuery(
@@ -210,33 +349,21 @@ class Async(val metaservDAO: MetaservDAO) {
             uri: UriInfo,
             query: String,
             objectMapper: ObjectMapper?,
-            resultRedirect: Boolean
+            resultRedirect: Boolean,
+            owner: String = QueryTask.ANONYMOUS_OWNER,
+            maxRec: Long? = null,
+            executionDuration: Long? = null,
+            destruction: Long? = null
         ): Response {
-            val dbUri: URI
-            val queryStatement: Statement
-            val qualifiedTables: List<ParsedTable>
-            val rewriter = TableNameRewriter()
+            val preparedQuery: PreparedQuery
             try {
-                val statement = SqlParser().createStatement(query,
-                    ParsingOptions(ParsingOptions.DecimalLiteralTreatment.AS_DOUBLE)
-                )
-                if (statement !is Query) {
-                    // allow MAXREC=0 case (as in ShowColumns) to go through
-                    if (statement !is ShowColumns) {
-                        val err = ErrorResponse("Only Select Queries allowed",
-                            "NotSelectStatementException", null, null)
-                        return Response.status(Response.Status.BAD_REQUEST).entity(err).build()
-                    }
-                }
-                val analyzer = Analyzer.TableAndColumnExtractor()
-                statement.accept(analyzer, null)
-                qualifiedTables = analyzer.tables
-                dbUri = Analyzer.getDatabaseURI(metaservDAO, analyzer.tables)
-                // Once we've found the database URI, rewrite the query
-                queryStatement = preprocessQueryExpressions(rewriter, statement)
+                preparedQuery = QUERY_CACHE.prepare(metaservDAO, query)
             } catch (ex: ParsingException) {
                 val err = ErrorResponse(ex.errorMessage, ex.javaClass.simpleName, null, cause = ex.message)
                 return Response.status(Response.Status.BAD_REQUEST).entity(err).build()
+            } catch (ex: NotSelectStatementException) {
+                val err = ErrorResponse(ex.message, ex.javaClass.simpleName, null, null)
+                return Response.status(Response.Status.BAD_REQUEST).entity(err).build()
             }
 
             // FIXME: Assert firstTable is fully qualified to a known database
@@ -245,37 +372,63 @@ class Async(val metaservDAO: MetaservDAO) {
             // FIXME: Switch statement to support different types of tasks (e.g. MySQL, Qserv-specific)
             val queryTask = QueryTask(
                 metaservDAO,
-                dbUri,
                 queryId,
-                queryStatement,
-                qualifiedTables,
-                objectMapper
+                preparedQuery,
+                objectMapper,
+                owner,
+                maxRec,
+                executionDurationOf(executionDuration),
+                destructionOf(destruction, System.currentTimeMillis())
             )
 
-            // FIXME: We're reasonably certain this will execute, execute a history task
-            val queryTaskFuture = EXECUTOR.submit(queryTask)
-
-            // Housekeeping
+            // Housekeeping, before the task can start running
             queryTask.phaseInfo.parameters = query
-            queryTask.phaseInfo.phase = "EXECUTING"
-            queryTask.phaseInfo.hasBooleanLiterals = rewriter.hasBooleanLiterals
+            queryTask.phaseInfo.hasBooleanLiterals = preparedQuery.hasBooleanLiterals
 
             if (objectMapper is TableMapper)
                 queryTask.phaseInfo.format = MediaType.APPLICATION_XML
             else queryTask.phaseInfo.format = MediaType.APPLICATION_JSON
+            queryTask.phaseInfo.transition(ExecutionPhase.PENDING, ExecutionPhase.QUEUED)
 
-            // FIXME: Use a real database (User, Monolithic?)
-            OUTSTANDING_QUERY_DATABASE[queryId] = queryTaskFuture
+            JOB_STORE.add(queryTask)
+            queryTask.completion = QUERY_SCHEDULER.submit(queryTask)
 
             val createdUri = getResultUri(uri, queryId, resultRedirect)
             return Response.seeOther(createdUri).build()
         }
 
-        private fun preprocessQueryExpressions(rewriter: TableNameRewriter, stmt: Statement): Statement {
-            // Rewrite query to extract database instance information
-            // Mark any boolean literals
-            val stmtRewrite = rewriter.process(stmt) as Statement
-            return stmtRewrite
+        /*
+        * The execution duration of a query: the requested one, within the configured maximum.
+        */
+        fun executionDurationOf(requested: Long?, maximum: Long = CONFIG?.DAX_MAX_EXECUTION_DURATION ?: 0): Long {
+            if (requested == null || requested <= 0) {
+                return maximum
+            }
+            return if (maximum > 0) minOf(requested, maximum) else requested
+        }
+
+        /*
+        * The destruction time of a job created at createdAt: the requested one, no later than the configured TTL.
+        */
+        fun destructionOf(requested: Long?, createdAt: Long): Long {
+            val ttlSeconds = CONFIG?.DAX_JOB_STORE?.ttlSeconds ?: JobStoreConfiguration().ttlSeconds
+            val latest = createdAt + TimeUnit.SECONDS.toMillis(ttlSeconds)
+            return if (requested == null) latest else minOf(requested, latest)
+        }
+
+        /*
+        * The owner of a new job: the authenticated user, or the user named by the
+        * configured owner header of an authenticating proxy. The application doesn't
+        * authenticate requests itself, so without that header every job is anonymous,
+        * and per-owner scheduling and quotas treat all jobs as one owner's.
+        */
+        fun ownerOf(securityContext: SecurityContext?, headers: HttpHeaders?): String {
+            securityContext?.userPrincipal?.name?.let { return it }
+            val ownerHeader = CONFIG?.DAX_OWNER_HEADER
+            if (ownerHeader != null) {
+                headers?.getHeaderString(ownerHeader)?.trim()?.takeIf { it.isNotEmpty() }?.let { return it }
+            }
+            return QueryTask.ANONYMOUS_OWNER
         }
 
         private fun getResultUri(uri: UriInfo, queryId: String, resultRedirect: Boolean): URI {
@@ -0,0 +1,195 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.lsst.dax.albuquery.resources
+
+import com.google.common.net.HttpHeaders
+import java.io.EOFException
+import java.io.File
+import java.io.OutputStream
+import java.lang.reflect.Type
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.time.ZonedDateTime
+import java.time.format.DateTimeFormatter
+import java.time.format.DateTimeParseException
+import java.util.Date
+import javax.ws.rs.Produces
+import javax.ws.rs.core.EntityTag
+import javax.ws.rs.core.MediaType
+import javax.ws.rs.core.MultivaluedMap
+import javax.ws.rs.core.Response
+import javax.ws.rs.ext.MessageBodyWriter
+import javax.ws.rs.ext.Provider
+
+/**
+ * A byte range of a file, sent as a response entity by [FileRegionWriter].
+ */
+class FileRegion(val file: File, val offset: Long, val length: Long) {
+
+    companion object {
+        private const val BYTES_UNIT = "bytes"
+
+        /**
+         * A response for a file, honouring the Range and If-Range request headers.
+         *
+         * Only a single range is served, other requests get the whole file.
+         * Result files aren't modified once written, so the ETag is derived
+         * from their modification time and length.
+         */
+        fun response(file: File, mediaType: String, rangeHeader: String?, ifRangeHeader: String?): Response {
+            val length = file.length()
+            val lastModified = file.lastModified()
+            val tag = EntityTag(java.lang.Long.toHexString(lastModified) + "-" + java.lang.Long.toHexString(length))
+            // A stale If-Range means the client wants the whole new file
+            val range = if (ifRangeHeader == null || ifRangeMatches(ifRangeHeader, tag, lastModified)) {
+                rangeOf(rangeHeader, length)
+            } else null
+            val builder = when {
+                range == null -> Response.ok(FileRegion(file, 0, length), mediaType)
+                    .header(HttpHeaders.CONTENT_LENGTH, length)
+                range.isEmpty() -> return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header(HttpHeaders.CONTENT_RANGE, "$BYTES_UNIT */$length")
+                    .build()
+                else -> {
+                    val rangeLength = range.last - range.first + 1
+                    Response.status(Response.Status.PARTIAL_CONTENT)
+                        .entity(FileRegion(file, range.first, rangeLength))
+                        .type(mediaType)
+                        .header(HttpHeaders.CONTENT_LENGTH, rangeLength)
+                        .header(HttpHeaders.CONTENT_RANGE, "$BYTES_UNIT ${range.first}-${range.last}/$length")
+                }
+            }
+            return builder.header(HttpHeaders.ACCEPT_RANGES, BYTES_UNIT)
+                .tag(tag)
+                .lastModified(Date(lastModified))
+                .build()
+        }
+
+        /**
+         * The bytes requested by a Range header, for a file of the given
+         * length. Null when the whole file should be sent, empty when the
+         * range can't be satisfied.
+         */
+        fun rangeOf(header: String?, length: Long): LongRange? {
+            if (header == null || !header.startsWith("$BYTES_UNIT=")) {
+                return null
+            }
+            val spec = header.substring(BYTES_UNIT.length + 1).trim()
+            val dash = spec.indexOf('-')
+            // Multiple ranges aren't supported
+            if (dash < 0 || spec.contains(',')) {
+                return null
+            }
+            val firstText = spec.substring(0, dash).trim()
+            val lastText = spec.substring(dash + 1).trim()
+            val first = firstText.toLongOrNull()
+            val last = lastText.toLongOrNull()
+            if ((firstText.isNotEmpty() && (first == null || first < 0)) ||
+                (lastText.isNotEmpty() && (last == null || last < 0))) {
+                return null
+            }
+            if (first == null) {
+                // The last bytes of the file
+                if (last == null) {
+                    return null
+                }
+                return if (last == 0L || length == 0L) LongRange.EMPTY else maxOf(length - last, 0L)..(length - 1)
+            }
+            if (last != null && last < first) {
+                return null
+            }
+            if (first >= length) {
+                return LongRange.EMPTY
+            }
+            return first..minOf(last ?: length - 1, length - 1)
+        }
+
+        private fun ifRangeMatches(header: String, tag: EntityTag, lastModified: Long): Boolean {
+            val value = header.trim()
+            // Weak tags never match
+            if (value.startsWith("\"")) {
+                return value == "\"${tag.value}\""
+            }
+            if (value.startsWith("W/")) {
+                return false
+            }
+            return try {
+                // HTTP dates have a precision of seconds
+                ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond() == lastModified / 1000
+            } catch (ex: DateTimeParseException) {
+                false
+            }
+        }
+    }
+}
+
+/**
+ * Writes a [FileRegion] with [FileChannel.transferTo], instead of the
+ * buffered copy of the generic File provider.
+ */
+@Provider
+@Produces(MediaType.WILDCARD)
+class FileRegionWriter : MessageBodyWriter<FileRegion> {
+
+    override fun isWriteable(
+        type: Class<*>,
+        genericType: Type?,
+        annotations: Array<Annotation>?,
+        mediaType: MediaType?
+    ): Boolean {
+        return FileRegion::class.java.isAssignableFrom(type)
+    }
+
+    override fun getSize(
+        region: FileRegion,
+        type: Class<*>?,
+        genericType: Type?,
+        annotations: Array<Annotation>?,
+        mediaType: MediaType?
+    ): Long {
+        return region.length
+    }
+
+    override fun writeTo(
+        region: FileRegion,
+        type: Class<*>?,
+        genericType: Type?,
+        annotations: Array<Annotation>?,
+        mediaType: MediaType?,
+        httpHeaders: MultivaluedMap<String, Any>?,
+        entityStream: OutputStream
+    ) {
+        FileChannel.open(region.file.toPath(), StandardOpenOption.READ).use { channel ->
+            val target = Channels.newChannel(entityStream)
+            var position = region.offset
+            val end = region.offset + region.length
+            while (position < end) {
+                val transferred = channel.transferTo(position, end - position, target)
+                if (transferred <= 0) {
+                    throw EOFException("${region.file} ended at $position, expected $end bytes")
+                }
+                position += transferred
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.lsst.dax.albuquery.resources
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.module.kotlin.KotlinModule
+import org.glassfish.jersey.server.ChunkedOutput
+import org.lsst.dax.albuquery.PROGRESS_EXECUTOR
+import org.lsst.dax.albuquery.RESPONSE_EXECUTOR
+import org.lsst.dax.albuquery.tasks.QueryProgress
+import org.lsst.dax.albuquery.tasks.QueryTask
+import java.io.IOException
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Streams the progress of a query as server-sent events, one every
+ * [intervalMillis] until the query has finished.
+ *
+ * Rows per second is measured over the last interval. Reports only read
+ * the task's counters, so they don't slow the query down.
+ *
+ * Reports are taken on the shared progress executor, but written on
+ * [writer], as writes block until the client takes them. A stream has at
+ * most one write in flight. A client which is still taking the last event
+ * skips reports until it catches up, so slow clients delay no one else.
+ */
+class ProgressStream(
+    private val queryTask: QueryTask,
+    private val output: ChunkedOutput<String>,
+    private val intervalMillis: Long,
+    private val writer: Executor = RESPONSE_EXECUTOR
+) : Runnable {
+    private var lastRows = 0L
+    private var lastNanos = 0L
+    private val writing = AtomicBoolean()
+    @Volatile
+    private var closed = false
+
+    fun start() {
+        PROGRESS_EXECUTOR.execute(this)
+    }
+
+    override fun run() {
+        if (closed) {
+            return
+        }
+        if (!writing.compareAndSet(false, true)) {
+            // Still writing the last report, a fresher one is sent later
+            PROGRESS_EXECUTOR.schedule(this, intervalMillis, TimeUnit.MILLISECONDS)
+            return
+        }
+        var progress = queryTask.progress
+        val now = System.nanoTime()
+        if (lastNanos != 0L) {
+            val rowsPerSecond = (progress.rowsFetched - lastRows) * 1e9 / Math.max(now - lastNanos, 1)
+            progress = progress.copy(rowsPerSecond = rowsPerSecond)
+        }
+        lastRows = progress.rowsFetched
+        lastNanos = now
+        val event = eventOf(progress)
+        writer.execute { write(event, progress.phase.isFinished) }
+        if (!progress.phase.isFinished) {
+            PROGRESS_EXECUTOR.schedule(this, intervalMillis, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    private fun write(event: String, last: Boolean) {
+        try {
+            output.write(event)
+        } catch (ex: IOException) {
+            // The client went away
+            close()
+            return
+        } finally {
+            writing.set(false)
+        }
+        if (last) {
+            close()
+        }
+    }
+
+    private fun close() {
+        closed = true
+        try {
+            output.close()
+        } catch (ex: IOException) {
+        }
+    }
+
+    companion object {
+        const val SERVER_SENT_EVENTS = "text/event-stream"
+        private val MAPPER = ObjectMapper().registerModule(KotlinModule())
+
+        fun eventOf(progress: QueryProgress): String {
+            return "event: progress\ndata: ${MAPPER.writeValueAsString(progress)}\n\n"
+        }
+    }
+}
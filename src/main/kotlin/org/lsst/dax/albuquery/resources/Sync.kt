@@ -23,15 +23,24 @@
 package org.lsst.dax.albuquery.resources
 
 import com.codahale.metrics.annotation.Timed
-import com.facebook.presto.sql.parser.ParsingOptions
-import com.facebook.presto.sql.parser.SqlParser
+import com.facebook.presto.sql.parser.ParsingException
 import com.facebook.presto.sql.tree.Query
 import com.facebook.presto.sql.tree.QuerySpecification
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.fasterxml.jackson.module.kotlin.KotlinModule
+import org.lsst.dax.albuquery.NotSelectStatementException
+import org.lsst.dax.albuquery.PreparedQuery
+import org.lsst.dax.albuquery.QUERY_CACHE
+import org.lsst.dax.albuquery.QueryMetadataHelper
 import org.lsst.dax.albuquery.dao.MetaservDAO
+import org.lsst.dax.albuquery.lookupMetadata
+import org.lsst.dax.albuquery.resources.Async.AsyncResponse
+import org.lsst.dax.albuquery.resources.Async.ResponseMetadata
 import org.lsst.dax.albuquery.vo.TableMapper
 import org.slf4j.LoggerFactory
+import java.io.StringWriter
+import java.util.Collections
+import java.util.UUID
 import javax.ws.rs.FormParam
 import javax.ws.rs.POST
 import javax.ws.rs.Path
@@ -40,6 +49,7 @@ import javax.ws.rs.core.Context
 import javax.ws.rs.core.HttpHeaders
 import javax.ws.rs.core.MediaType
 import javax.ws.rs.core.Response
+import javax.ws.rs.core.SecurityContext
 import javax.ws.rs.core.UriInfo
 
 @Path("sync")
@@ -49,36 +59,67 @@ class Sync(val metaservDAO: MetaservDAO) {
     lateinit var uri: UriInfo
     @Context
     lateinit var headers: HttpHeaders
+    @Context
+    lateinit var securityContext: SecurityContext
 
     @Timed
     @POST
     fun createQuery(
         @QueryParam("QUERY") @FormParam("QUERY") queryParam: String?,
         @QueryParam("RESPONSEFORMAT") @FormParam("RESPONSEFORMAT") formatParam: String?,
-        @QueryParam("MAXREC") @FormParam("MAXREC") maxrecParam: Int?,
+        @QueryParam("MAXREC") @FormParam("MAXREC") maxrecParam: Long?,
+        @QueryParam("EXECUTIONDURATION") @FormParam("EXECUTIONDURATION") executionDurationParam: Long?,
         postBody: String
     ): Response {
-        var query = queryParam ?: postBody
+        val query = queryParam ?: postBody
         val format = formatParam ?: ""
-        val maxRec = maxrecParam ?: -1
+        val maxRec = maxrecParam ?: -1L
         LOGGER.info("Recieved query [$query]")
         var om: ObjectMapper?
         val ct = headers.getRequestHeader(HttpHeaders.ACCEPT).get(0)
         if (ct == MediaType.APPLICATION_JSON || format.contains("json"))
             om = ObjectMapper().registerModule(KotlinModule())
         else om = TableMapper() // default: VOTable
-        if (maxRec == 0) {
-            // just return schema info, rewrite SELECT to DESCRIBE due to QServ limitation
-            val stmt = SqlParser().createStatement(query,
-                ParsingOptions(ParsingOptions.DecimalLiteralTreatment.AS_DOUBLE)
-            ) as Query
-            val spec: QuerySpecification = stmt.getQueryBody() as QuerySpecification
-            val table = spec.getFrom().get().toString()
-            val tableName = table.substringAfter("Table{").substringBefore("}")
-            // rewrite to DESCRTIBE <table>
-            query = "DESCRIBE $tableName"
+        if (maxRec == 0L) {
+            // just return schema info, from metaserv when possible
+            val schemaResponse = createSchemaResponse(query, om)
+            if (schemaResponse != null) {
+                return schemaResponse
+            }
+        }
+        return Async.createAsyncQuery(metaservDAO, uri, query, om, resultRedirect = true,
+            owner = Async.ownerOf(securityContext, headers), maxRec = maxrecParam,
+            executionDuration = executionDurationParam)
+    }
+
+    /**
+     * Answer a MAXREC=0 request with the metadata of the result, without
+     * running the query. Returns null if metaserv doesn't know every
+     * column of the result, and the database must be asked instead.
+     */
+    private fun createSchemaResponse(query: String, om: ObjectMapper): Response? {
+        val preparedQuery: PreparedQuery
+        try {
+            preparedQuery = QUERY_CACHE.prepare(metaservDAO, query)
+        } catch (ex: ParsingException) {
+            return null
+        } catch (ex: NotSelectStatementException) {
+            return null
+        }
+        val querySpecification = (preparedQuery.statement as? Query)?.queryBody as? QuerySpecification ?: return null
+        val columns = QueryMetadataHelper(preparedQuery.analysis).schemaMetadata(
+            querySpecification.select.selectItems.size,
+            lookupMetadata(metaservDAO, preparedQuery.qualifiedTables)
+        )
+        if (columns == null || columns.isEmpty()) {
+            return null
         }
-        return Async.createAsyncQuery(metaservDAO, uri, query, om, resultRedirect = true)
+        val response = AsyncResponse(UUID.randomUUID().toString(), ResponseMetadata(columns),
+            Collections.emptyIterator())
+        val writer = StringWriter()
+        om.writeValue(writer, response)
+        val mediaType = if (om is TableMapper) MediaType.APPLICATION_XML else MediaType.APPLICATION_JSON
+        return Response.ok(writer.toString(), mediaType).build()
     }
 
     companion object {
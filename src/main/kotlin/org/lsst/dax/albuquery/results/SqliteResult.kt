@@ -36,10 +36,44 @@ import liquibase.resource.CompositeResourceAccessor
 import liquibase.resource.FileSystemResourceAccessor
 import liquibase.resource.ResourceAccessor
 
+import org.lsst.dax.albuquery.CONFIG
 import org.lsst.dax.albuquery.JdbcColumnMetadata
+import org.lsst.dax.albuquery.ResultDatabaseConfiguration
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.sql.Connection
+import java.sql.DriverManager
+import java.sql.SQLException
 
+/**
+ * Creation of result databases.
+ *
+ * The `meta$*` tables are described by the Liquibase changelog in
+ * schema.yml. Liquibase is only run once, to build a template database;
+ * every result database is a copy of the template with the `result`
+ * table created directly.
+ *
+ * Result databases are written with the bulk load settings of
+ * [ResultDatabaseConfiguration] and finalized once complete.
+ */
 class SqliteResult {
     companion object {
+        private const val TEMPLATE_PREFIX = "albuquery-result-template"
+        // File name of the result database in the result directory of a query
+        const val RESULT_DATABASE = "result.sqlite"
+        private val JOURNAL_MODES = setOf("OFF", "MEMORY", "WAL", "DELETE", "TRUNCATE", "PERSIST")
+        private val SYNCHRONOUS_MODES = setOf("OFF", "NORMAL", "FULL", "EXTRA")
+
+        val configuration: ResultDatabaseConfiguration
+            get() = CONFIG?.DAX_RESULT_DATABASE ?: ResultDatabaseConfiguration()
+
+        /**
+         * Template database holding the result schema without the result table.
+         */
+        val templateDatabase: Path by lazy { buildTemplateDatabase() }
+
         fun buildChangeLog(jdbcColumnMetadata: Collection<JdbcColumnMetadata>): DatabaseChangeLog {
             val createTableChange = CreateTableChange()
             createTableChange.tableName = "result"
@@ -49,6 +83,12 @@ class SqliteResult {
                 columnConfig.type = column.jdbcType.toString()
                 createTableChange.addColumn(columnConfig)
             }
+            val changeLog = buildSchemaChangeLog()
+            changeLog.changeSets[0].addChange(createTableChange)
+            return changeLog
+        }
+
+        fun buildSchemaChangeLog(): DatabaseChangeLog {
             val changeLogParameters = ChangeLogParameters()
             val accessor = CompositeResourceAccessor(ClassLoaderResourceAccessor(), FileSystemResourceAccessor())
             val pkgPath = ::SqliteResult.javaClass.`package`.name.replace(".", "/")
@@ -64,7 +104,6 @@ class SqliteResult {
                 schemaResource = ::SqliteResult.javaClass.getResource(schemaFileName).file
                 changeLog = parser.parse(schemaResource, changeLogParameters, accessor)
             }
-            changeLog.changeSets[0].addChange(createTableChange)
             return changeLog
         }
 
@@ -73,6 +112,120 @@ class SqliteResult {
             val liquibaseDb = DatabaseFactory.getInstance().openDatabase(dbUri, null, null, null, accessor)
             val lb = Liquibase(changeLog, accessor, liquibaseDb)
             lb.update(Contexts())
+            liquibaseDb.close()
+        }
+
+        /**
+         * Create a result database at [resultFile] from the template and
+         * create the result table for [jdbcColumnMetadata].
+         * @return An open connection to the new database
+         */
+        fun createResultDatabase(resultFile: Path, jdbcColumnMetadata: Collection<JdbcColumnMetadata>): Connection {
+            val connection = openResultDatabase(resultFile)
+            createResultTable(connection, jdbcColumnMetadata)
+            return connection
+        }
+
+        /**
+         * Copy the template to [resultFile] and open it for bulk loading.
+         * This doesn't depend on the result columns, so it may be done
+         * before the query returns.
+         * @return An open connection to the new database
+         */
+        fun openResultDatabase(resultFile: Path): Connection {
+            Files.copy(templateDatabase, resultFile)
+            val connection = DriverManager.getConnection("jdbc:sqlite:" + resultFile)
+            try {
+                connection.createStatement().use { stmt ->
+                    for (pragma in bulkLoadPragmas(configuration)) {
+                        stmt.execute(pragma)
+                    }
+                }
+            } catch (ex: SQLException) {
+                connection.close()
+                throw ex
+            }
+            return connection
+        }
+
+        /**
+         * Create the result table for [jdbcColumnMetadata]. The connection
+         * is closed if that fails.
+         */
+        fun createResultTable(connection: Connection, jdbcColumnMetadata: Collection<JdbcColumnMetadata>) {
+            try {
+                connection.createStatement().use { stmt ->
+                    stmt.executeUpdate(createResultTableSql(jdbcColumnMetadata))
+                }
+            } catch (ex: SQLException) {
+                connection.close()
+                throw ex
+            }
+        }
+
+        /**
+         * Flip a completed result database to a read-optimized, durable state
+         * and close [connection]. Pending changes are committed first.
+         */
+        fun finalizeResultDatabase(connection: Connection, resultFile: Path) {
+            val config = configuration
+            try {
+                connection.createStatement().use { stmt ->
+                    if (config.analyze) {
+                        stmt.execute("ANALYZE")
+                    }
+                    connection.commit()
+                    connection.autoCommit = true
+                    stmt.execute("PRAGMA locking_mode = NORMAL")
+                    stmt.execute("PRAGMA journal_mode = DELETE")
+                    stmt.execute("PRAGMA synchronous = FULL")
+                }
+            } finally {
+                connection.close()
+            }
+            // Writes were not synced during the load, so sync the file once
+            FileChannel.open(resultFile, StandardOpenOption.WRITE).use { it.force(true) }
+        }
+
+        fun bulkLoadPragmas(config: ResultDatabaseConfiguration): List<String> {
+            val journalMode = config.journalMode.toUpperCase()
+            val synchronous = config.synchronous.toUpperCase()
+            require(journalMode in JOURNAL_MODES) { "Unknown journal_mode: ${config.journalMode}" }
+            require(synchronous in SYNCHRONOUS_MODES) { "Unknown synchronous: ${config.synchronous}" }
+            val pragmas = arrayListOf(
+                "PRAGMA journal_mode = $journalMode",
+                "PRAGMA synchronous = $synchronous",
+                "PRAGMA cache_size = ${config.cacheSize}"
+            )
+            if (config.exclusiveLocking) {
+                pragmas.add("PRAGMA locking_mode = EXCLUSIVE")
+            }
+            return pragmas
+        }
+
+        fun createResultTableSql(jdbcColumnMetadata: Collection<JdbcColumnMetadata>): String {
+            val columns = jdbcColumnMetadata.joinToString(", ") { column ->
+                quoteIdentifier(column.name) + " " + column.jdbcType.toString()
+            }
+            return "CREATE TABLE result ($columns)"
+        }
+
+        private fun quoteIdentifier(name: String): String = "\"" + name.replace("\"", "\"\"") + "\""
+
+        private fun buildTemplateDatabase(): Path {
+            val templateFile = Files.createTempFile(TEMPLATE_PREFIX, ".sqlite")
+            templateFile.toFile().deleteOnExit()
+            // Start from an empty file, SQLite initializes it on first use
+            Files.delete(templateFile)
+            initializeDatabase(buildSchemaChangeLog(), "jdbc:sqlite:" + templateFile)
+            // The page size of a database can only change by rebuilding it
+            DriverManager.getConnection("jdbc:sqlite:" + templateFile).use { connection ->
+                connection.createStatement().use { stmt ->
+                    stmt.execute("PRAGMA page_size = ${configuration.pageSize}")
+                    stmt.execute("VACUUM")
+                }
+            }
+            return templateFile
         }
     }
 }
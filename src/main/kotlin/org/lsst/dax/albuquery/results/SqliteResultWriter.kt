@@ -0,0 +1,142 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.lsst.dax.albuquery.results
+
+import org.lsst.dax.albuquery.RESULT_WRITER_EXECUTOR
+import org.lsst.dax.albuquery.RowBatch
+import java.nio.file.Path
+import java.sql.Connection
+import java.sql.PreparedStatement
+import java.sql.SQLException
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+
+/**
+ * Persists result rows into the result database on its own thread.
+ *
+ * Rows are handed over in batches through a bounded queue, so the backend
+ * fetch, the SQLite inserts and the response serialization overlap. When the
+ * queue is full, [write] blocks, which throttles the producer to the speed
+ * of the writer.
+ *
+ * The writer owns [connection] and [stmt]. When it finishes, the database
+ * is finalized (see [SqliteResult.finalizeResultDatabase]) and closed.
+ * A writer which receives nothing for [idleTimeoutMs] gives up, so one
+ * which is never finished doesn't hold its thread forever.
+ */
+class SqliteResultWriter(
+    private val connection: Connection,
+    private val stmt: PreparedStatement,
+    private val resultFile: Path,
+    queueCapacity: Int = WRITER_QUEUE_CAPACITY,
+    private val idleTimeoutMs: Long = WRITER_IDLE_TIMEOUT_MS
+) : Callable<Long> {
+
+    private val queue = ArrayBlockingQueue<RowBatch>(queueCapacity)
+    private var future: Future<Long>? = null
+
+    fun start() {
+        future = RESULT_WRITER_EXECUTOR.submit(this)
+    }
+
+    /**
+     * Queue a batch of rows. The batch must not be modified afterwards.
+     */
+    fun write(batch: RowBatch) {
+        while (!queue.offer(batch, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            // Don't block forever on a writer which has died
+            val writerFuture = future!!
+            if (writerFuture.isDone) {
+                await(writerFuture)
+            }
+        }
+    }
+
+    /**
+     * Signal the end of the results and wait for everything to be committed.
+     * @return The number of rows written
+     */
+    fun finish(): Long {
+        write(END_OF_RESULTS)
+        return await(future!!)
+    }
+
+    override fun call(): Long {
+        var rowCount = 0L
+        try {
+            while (true) {
+                val batch = queue.poll(idleTimeoutMs, TimeUnit.MILLISECONDS)
+                    ?: throw SQLException("Result writer for $resultFile abandoned after ${idleTimeoutMs}ms")
+                if (batch === END_OF_RESULTS) {
+                    break
+                }
+                val columns = batch.columns
+                for (row in 0 until batch.size) {
+                    for (index in columns.indices) {
+                        columns[index].bind(stmt, index + 1, row)
+                    }
+                    stmt.addBatch()
+                }
+                stmt.executeBatch()
+                rowCount += batch.size
+            }
+            stmt.close()
+            SqliteResult.finalizeResultDatabase(connection, resultFile)
+        } finally {
+            try {
+                stmt.close()
+            } catch (ex: SQLException) {
+            }
+            connection.close()
+        }
+        return rowCount
+    }
+
+    private fun await(writerFuture: Future<Long>): Long {
+        try {
+            return writerFuture.get()
+        } catch (ex: ExecutionException) {
+            val cause = ex.cause
+            if (cause is SQLException) {
+                throw cause
+            }
+            throw SQLException("Error writing results", cause)
+        }
+    }
+
+    companion object {
+        /*
+        * Number of row batches which may be waiting for the writer.
+        */
+        const val WRITER_QUEUE_CAPACITY = 4
+        /*
+        * Time the writer waits for the next batch before giving up.
+        */
+        const val WRITER_IDLE_TIMEOUT_MS = 60 * 60 * 1000L
+        private const val OFFER_TIMEOUT_MS = 100L
+        private val END_OF_RESULTS = RowBatch(arrayOf(), 0)
+    }
+}
@@ -0,0 +1,525 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.lsst.dax.albuquery.rewrite
+
+import com.facebook.presto.sql.ExpressionFormatter
+import com.facebook.presto.sql.SqlFormatter
+import com.facebook.presto.sql.tree.AliasedRelation
+import com.facebook.presto.sql.tree.AllColumns
+import com.facebook.presto.sql.tree.ArithmeticBinaryExpression
+import com.facebook.presto.sql.tree.ArithmeticUnaryExpression
+import com.facebook.presto.sql.tree.AstVisitor
+import com.facebook.presto.sql.tree.BetweenPredicate
+import com.facebook.presto.sql.tree.BooleanLiteral
+import com.facebook.presto.sql.tree.Cast
+import com.facebook.presto.sql.tree.CoalesceExpression
+import com.facebook.presto.sql.tree.ComparisonExpression
+import com.facebook.presto.sql.tree.DecimalLiteral
+import com.facebook.presto.sql.tree.DereferenceExpression
+import com.facebook.presto.sql.tree.DoubleLiteral
+import com.facebook.presto.sql.tree.ExistsPredicate
+import com.facebook.presto.sql.tree.Expression
+import com.facebook.presto.sql.tree.FunctionCall
+import com.facebook.presto.sql.tree.GenericLiteral
+import com.facebook.presto.sql.tree.Identifier
+import com.facebook.presto.sql.tree.InListExpression
+import com.facebook.presto.sql.tree.InPredicate
+import com.facebook.presto.sql.tree.IsNotNullPredicate
+import com.facebook.presto.sql.tree.IsNullPredicate
+import com.facebook.presto.sql.tree.Join
+import com.facebook.presto.sql.tree.JoinOn
+import com.facebook.presto.sql.tree.JoinUsing
+import com.facebook.presto.sql.tree.LikePredicate
+import com.facebook.presto.sql.tree.LogicalBinaryExpression
+import com.facebook.presto.sql.tree.LongLiteral
+import com.facebook.presto.sql.tree.NaturalJoin
+import com.facebook.presto.sql.tree.Node
+import com.facebook.presto.sql.tree.NotExpression
+import com.facebook.presto.sql.tree.NullIfExpression
+import com.facebook.presto.sql.tree.NullLiteral
+import com.facebook.presto.sql.tree.OrderBy
+import com.facebook.presto.sql.tree.QualifiedName
+import com.facebook.presto.sql.tree.Query
+import com.facebook.presto.sql.tree.QuerySpecification
+import com.facebook.presto.sql.tree.SearchedCaseExpression
+import com.facebook.presto.sql.tree.ShowColumns
+import com.facebook.presto.sql.tree.SimpleCaseExpression
+import com.facebook.presto.sql.tree.SimpleGroupBy
+import com.facebook.presto.sql.tree.SingleColumn
+import com.facebook.presto.sql.tree.SortItem
+import com.facebook.presto.sql.tree.StringLiteral
+import com.facebook.presto.sql.tree.SubqueryExpression
+import com.facebook.presto.sql.tree.Table
+import com.facebook.presto.sql.tree.TableSubquery
+import com.facebook.presto.sql.tree.Union
+import com.facebook.presto.sql.tree.WhenClause
+import java.util.Optional
+
+/**
+ * Formats statements as SQL for MySQL and Qserv, in one pass.
+ *
+ * Unlike presto's SqlFormatter:
+ *  - identifiers are only quoted when needed, with backticks
+ *  - boolean literals are written as 1 and 0
+ *  - backslashes in string literals are escaped
+ *  - Qserv area restrictions (qserv_areaspec_*) are moved to the front of
+ *    WHERE clauses, outside of any parentheses, where Qserv expects them
+ *
+ * Nodes without a MySQL form here fall back to presto's formatter, with its
+ * double quotes removed.
+ */
+class QservSqlFormatter private constructor(private val builder: StringBuilder) : AstVisitor<Unit, Void?>() {
+
+    companion object {
+        private val SIMPLE_IDENTIFIER = Regex("[A-Za-z_][A-Za-z0-9_$]*")
+        private const val AREASPEC_PREFIX = "qserv_areaspec_"
+        // Larger builders, e.g. after a huge IN list, aren't kept around
+        private const val MAX_RETAINED_CAPACITY = 1024 * 1024
+        private val BUILDER = ThreadLocal.withInitial { StringBuilder(1024) }
+
+        fun format(statement: Node): String {
+            val builder = BUILDER.get()
+            builder.setLength(0)
+            QservSqlFormatter(builder).process(statement, null)
+            val sql = builder.toString()
+            if (builder.capacity() > MAX_RETAINED_CAPACITY) {
+                BUILDER.set(StringBuilder(1024))
+            }
+            return sql
+        }
+
+        fun formatIdentifier(name: String, delimited: Boolean = false): String {
+            if (!delimited && SIMPLE_IDENTIFIER.matches(name)) {
+                return name
+            }
+            return "`" + name.replace("`", "``") + "`"
+        }
+
+        fun formatName(name: QualifiedName): String {
+            return name.originalParts.joinToString(".") { formatIdentifier(it) }
+        }
+
+        fun formatStringLiteral(value: String): String {
+            return "'" + value.replace("\\", "\\\\").replace("'", "''") + "'"
+        }
+    }
+
+    private fun emit(node: Node) {
+        process(node, null)
+    }
+
+    private fun emitAll(nodes: List<Node>, separator: String = ", ") {
+        for ((index, node) in nodes.withIndex()) {
+            if (index > 0) {
+                builder.append(separator)
+            }
+            emit(node)
+        }
+    }
+
+    override fun visitNode(node: Node, context: Void?) {
+        val formatted = if (node is Expression) {
+            ExpressionFormatter.formatExpression(node, Optional.empty())
+        } else {
+            SqlFormatter.formatSql(node, Optional.empty())
+        }
+        // Presto quotes identifiers with double quotes, which MySQL reads as strings
+        builder.append(formatted.replace("\"", ""))
+    }
+
+    override fun visitShowColumns(node: ShowColumns, context: Void?) {
+        builder.append("SHOW COLUMNS FROM ").append(formatName(node.table))
+    }
+
+    override fun visitQuery(node: Query, context: Void?) {
+        if (node.with.isPresent) {
+            // Not supported by MySQL/Qserv anyway
+            visitNode(node, context)
+            return
+        }
+        emit(node.queryBody)
+        appendOrderBy(node.orderBy)
+        appendLimit(node.limit)
+    }
+
+    override fun visitQuerySpecification(node: QuerySpecification, context: Void?) {
+        builder.append("SELECT ")
+        if (node.select.isDistinct) {
+            builder.append("DISTINCT ")
+        }
+        emitAll(node.select.selectItems)
+        if (node.from.isPresent) {
+            builder.append(" FROM ")
+            emit(node.from.get())
+        }
+        if (node.where.isPresent) {
+            builder.append(" WHERE ")
+            appendConjuncts(node.where.get())
+        }
+        if (node.groupBy.isPresent) {
+            builder.append(" GROUP BY ")
+            for ((index, element) in node.groupBy.get().groupingElements.withIndex()) {
+                if (index > 0) {
+                    builder.append(", ")
+                }
+                if (element is SimpleGroupBy) {
+                    emitAll(element.columnExpressions)
+                } else {
+                    visitNode(element, context)
+                }
+            }
+        }
+        if (node.having.isPresent) {
+            builder.append(" HAVING ")
+            emit(node.having.get())
+        }
+        appendOrderBy(node.orderBy)
+        appendLimit(node.limit)
+    }
+
+    private fun appendOrderBy(orderBy: Optional<OrderBy>) {
+        if (orderBy.isPresent) {
+            builder.append(" ORDER BY ")
+            emitAll(orderBy.get().sortItems)
+        }
+    }
+
+    private fun appendLimit(limit: Optional<String>) {
+        if (limit.isPresent && !limit.get().equals("ALL", ignoreCase = true)) {
+            builder.append(" LIMIT ").append(limit.get())
+        }
+    }
+
+    /*
+    * Write a WHERE condition as its top-level conjuncts, area restrictions first.
+    */
+    private fun appendConjuncts(condition: Expression) {
+        val conjuncts = arrayListOf<Expression>()
+        collectConjuncts(condition, conjuncts)
+        val (areaspecs, others) = conjuncts.partition { isAreaspec(it) }
+        emitAll(areaspecs + others, " AND ")
+    }
+
+    private fun collectConjuncts(expression: Expression, conjuncts: MutableList<Expression>) {
+        if (expression is LogicalBinaryExpression && expression.type.toString() == "AND") {
+            collectConjuncts(expression.left, conjuncts)
+            collectConjuncts(expression.right, conjuncts)
+        } else {
+            conjuncts.add(expression)
+        }
+    }
+
+    private fun isAreaspec(expression: Expression): Boolean {
+        return expression is FunctionCall &&
+            expression.name.originalParts.last().toLowerCase().startsWith(AREASPEC_PREFIX)
+    }
+
+    override fun visitSortItem(node: SortItem, context: Void?) {
+        emit(node.sortKey)
+        builder.append(if (node.ordering.toString() == "DESCENDING") " DESC" else " ASC")
+    }
+
+    override fun visitUnion(node: Union, context: Void?) {
+        for ((index, relation) in node.relations.withIndex()) {
+            if (index > 0) {
+                builder.append(if (node.isDistinct) " UNION " else " UNION ALL ")
+            }
+            builder.append("(")
+            emit(relation)
+            builder.append(")")
+        }
+    }
+
+    override fun visitSingleColumn(node: SingleColumn, context: Void?) {
+        emit(node.expression)
+        if (node.alias.isPresent) {
+            builder.append(" AS ")
+            emit(node.alias.get())
+        }
+    }
+
+    override fun visitAllColumns(node: AllColumns, context: Void?) {
+        if (node.prefix.isPresent) {
+            builder.append(formatName(node.prefix.get())).append(".")
+        }
+        builder.append("*")
+    }
+
+    override fun visitTable(node: Table, context: Void?) {
+        builder.append(formatName(node.name))
+    }
+
+    override fun visitAliasedRelation(node: AliasedRelation, context: Void?) {
+        emit(node.relation)
+        builder.append(" AS ")
+        emit(node.alias)
+    }
+
+    override fun visitTableSubquery(node: TableSubquery, context: Void?) {
+        builder.append("(")
+        emit(node.query)
+        builder.append(")")
+    }
+
+    override fun visitJoin(node: Join, context: Void?) {
+        val type = node.type.toString()
+        emit(node.left)
+        if (type == "IMPLICIT") {
+            builder.append(", ")
+            emit(node.right)
+            return
+        }
+        val criteria = node.criteria.orElse(null)
+        builder.append(" ")
+        if (criteria is NaturalJoin) {
+            builder.append("NATURAL ")
+        }
+        builder.append(type).append(" JOIN ")
+        emit(node.right)
+        when (criteria) {
+            is JoinOn -> {
+                builder.append(" ON ")
+                emit(criteria.expression)
+            }
+            is JoinUsing -> {
+                builder.append(" USING (")
+                builder.append(criteria.columns.joinToString(", ") {
+                    if (it is Identifier) formatIdentifier(it.value, it.isDelimited)
+                    else formatIdentifier(it.toString())
+                })
+                builder.append(")")
+            }
+        }
+    }
+
+    override fun visitIdentifier(node: Identifier, context: Void?) {
+        builder.append(formatIdentifier(node.value, node.isDelimited))
+    }
+
+    override fun visitDereferenceExpression(node: DereferenceExpression, context: Void?) {
+        emit(node.base)
+        builder.append(".")
+        emit(node.field)
+    }
+
+    override fun visitBooleanLiteral(node: BooleanLiteral, context: Void?) {
+        builder.append(if (node.value) "1" else "0")
+    }
+
+    override fun visitStringLiteral(node: StringLiteral, context: Void?) {
+        builder.append(formatStringLiteral(node.value))
+    }
+
+    override fun visitLongLiteral(node: LongLiteral, context: Void?) {
+        builder.append(node.value)
+    }
+
+    override fun visitDoubleLiteral(node: DoubleLiteral, context: Void?) {
+        builder.append(node.value)
+    }
+
+    override fun visitDecimalLiteral(node: DecimalLiteral, context: Void?) {
+        builder.append(node.value)
+    }
+
+    override fun visitGenericLiteral(node: GenericLiteral, context: Void?) {
+        builder.append(node.type).append(" ").append(formatStringLiteral(node.value))
+    }
+
+    override fun visitNullLiteral(node: NullLiteral, context: Void?) {
+        builder.append("NULL")
+    }
+
+    override fun visitArithmeticUnary(node: ArithmeticUnaryExpression, context: Void?) {
+        if (node.sign.toString() == "MINUS") {
+            builder.append("-")
+            // Don't start a "--" comment
+            val start = builder.length
+            emit(node.value)
+            if (builder.length > start && builder[start] == '-') {
+                builder.insert(start, ' ')
+            }
+        } else {
+            emit(node.value)
+        }
+    }
+
+    override fun visitArithmeticBinary(node: ArithmeticBinaryExpression, context: Void?) {
+        appendBinary(node.left, node.type.value, node.right)
+    }
+
+    override fun visitComparisonExpression(node: ComparisonExpression, context: Void?) {
+        if (node.type.toString() == "IS_DISTINCT_FROM") {
+            builder.append("(NOT ")
+            appendBinary(node.left, "<=>", node.right)
+            builder.append(")")
+        } else {
+            appendBinary(node.left, node.type.value, node.right)
+        }
+    }
+
+    override fun visitLogicalBinaryExpression(node: LogicalBinaryExpression, context: Void?) {
+        appendBinary(node.left, node.type.toString(), node.right)
+    }
+
+    private fun appendBinary(left: Expression, operator: String, right: Expression) {
+        builder.append("(")
+        emit(left)
+        builder.append(" ").append(operator).append(" ")
+        emit(right)
+        builder.append(")")
+    }
+
+    override fun visitNotExpression(node: NotExpression, context: Void?) {
+        builder.append("(NOT ")
+        emit(node.value)
+        builder.append(")")
+    }
+
+    override fun visitIsNullPredicate(node: IsNullPredicate, context: Void?) {
+        builder.append("(")
+        emit(node.value)
+        builder.append(" IS NULL)")
+    }
+
+    override fun visitIsNotNullPredicate(node: IsNotNullPredicate, context: Void?) {
+        builder.append("(")
+        emit(node.value)
+        builder.append(" IS NOT NULL)")
+    }
+
+    override fun visitBetweenPredicate(node: BetweenPredicate, context: Void?) {
+        builder.append("(")
+        emit(node.value)
+        builder.append(" BETWEEN ")
+        emit(node.min)
+        builder.append(" AND ")
+        emit(node.max)
+        builder.append(")")
+    }
+
+    override fun visitInPredicate(node: InPredicate, context: Void?) {
+        builder.append("(")
+        emit(node.value)
+        builder.append(" IN ")
+        emit(node.valueList)
+        builder.append(")")
+    }
+
+    override fun visitInListExpression(node: InListExpression, context: Void?) {
+        builder.append("(")
+        emitAll(node.values)
+        builder.append(")")
+    }
+
+    override fun visitSubqueryExpression(node: SubqueryExpression, context: Void?) {
+        builder.append("(")
+        emit(node.query)
+        builder.append(")")
+    }
+
+    override fun visitExists(node: ExistsPredicate, context: Void?) {
+        builder.append("(EXISTS ")
+        emit(node.subquery)
+        builder.append(")")
+    }
+
+    override fun visitLikePredicate(node: LikePredicate, context: Void?) {
+        builder.append("(")
+        emit(node.value)
+        builder.append(" LIKE ")
+        emit(node.pattern)
+        if (node.escape != null) {
+            builder.append(" ESCAPE ")
+            emit(node.escape)
+        }
+        builder.append(")")
+    }
+
+    override fun visitFunctionCall(node: FunctionCall, context: Void?) {
+        if (node.window.isPresent || node.filter.isPresent || node.orderBy.isPresent) {
+            visitNode(node, context)
+            return
+        }
+        builder.append(node.name.originalParts.joinToString("."))
+        builder.append("(")
+        if (node.isDistinct) {
+            builder.append("DISTINCT ")
+        }
+        if (node.arguments.isEmpty() && node.name.toString() == "count") {
+            builder.append("*")
+        } else {
+            emitAll(node.arguments)
+        }
+        builder.append(")")
+    }
+
+    override fun visitCast(node: Cast, context: Void?) {
+        if (node.isSafe) {
+            visitNode(node, context)
+            return
+        }
+        builder.append("CAST(")
+        emit(node.expression)
+        builder.append(" AS ").append(node.type).append(")")
+    }
+
+    override fun visitCoalesceExpression(node: CoalesceExpression, context: Void?) {
+        builder.append("COALESCE(")
+        emitAll(node.operands)
+        builder.append(")")
+    }
+
+    override fun visitNullIfExpression(node: NullIfExpression, context: Void?) {
+        builder.append("NULLIF(")
+        emit(node.first)
+        builder.append(", ")
+        emit(node.second)
+        builder.append(")")
+    }
+
+    override fun visitSearchedCaseExpression(node: SearchedCaseExpression, context: Void?) {
+        builder.append("CASE")
+        appendCaseBody(node.whenClauses, node.defaultValue)
+    }
+
+    override fun visitSimpleCaseExpression(node: SimpleCaseExpression, context: Void?) {
+        builder.append("CASE ")
+        emit(node.operand)
+        appendCaseBody(node.whenClauses, node.defaultValue)
+    }
+
+    private fun appendCaseBody(whenClauses: List<WhenClause>, defaultValue: Optional<Expression>) {
+        for (whenClause in whenClauses) {
+            builder.append(" WHEN ")
+            emit(whenClause.operand)
+            builder.append(" THEN ")
+            emit(whenClause.result)
+        }
+        if (defaultValue.isPresent) {
+            builder.append(" ELSE ")
+            emit(defaultValue.get())
+        }
+        builder.append(" END")
+    }
+}
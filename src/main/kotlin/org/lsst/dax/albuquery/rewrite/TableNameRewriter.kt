@@ -28,7 +28,7 @@ import com.facebook.presto.sql.tree.QualifiedName
 import com.facebook.presto.sql.tree.ShowColumns
 import com.facebook.presto.sql.tree.Table
 
-class TableNameRewriter() : AstRebuilder<Void?>() {
+open class TableNameRewriter() : AstRebuilder<Void?>() {
 
     public var hasBooleanLiterals: Boolean = false
 
@@ -50,8 +50,7 @@ class TableNameRewriter() : AstRebuilder<Void?>() {
     override fun visitBooleanLiteral(node: BooleanLiteral?, context: Void?): Node {
         if (node != null) {
             this.hasBooleanLiterals = true
-            val value: Boolean = node.value
-            return BooleanLiteral(value.toString())
+            return node
         } else {
             return BooleanLiteral(null)
         }
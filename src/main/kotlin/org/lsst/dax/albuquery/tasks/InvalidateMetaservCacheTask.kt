@@ -0,0 +1,45 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.lsst.dax.albuquery.tasks
+
+import com.google.common.collect.ImmutableMultimap
+import io.dropwizard.servlets.tasks.Task
+import org.lsst.dax.albuquery.QUERY_CACHE
+import org.lsst.dax.albuquery.dao.MetaservCache
+import java.io.PrintWriter
+
+/**
+ * Admin task dropping the cached metaserv metadata, e.g. after a new
+ * database has been registered.
+ *
+ * POST /tasks/invalidate-metaserv-cache
+ */
+class InvalidateMetaservCacheTask(val cache: MetaservCache) : Task("invalidate-metaserv-cache") {
+
+    override fun execute(parameters: ImmutableMultimap<String, String>, output: PrintWriter) {
+        cache.invalidateAll()
+        // Prepared queries hold the database URI found in metaserv
+        QUERY_CACHE.invalidateAll()
+        output.println("Metaserv cache invalidated")
+    }
+}
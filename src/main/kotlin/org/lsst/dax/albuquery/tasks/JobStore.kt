@@ -0,0 +1,238 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.lsst.dax.albuquery.tasks
+
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import io.dropwizard.lifecycle.Managed
+import org.lsst.dax.albuquery.ExecutionPhase
+import org.lsst.dax.albuquery.JobStoreConfiguration
+import org.lsst.dax.albuquery.PhaseInfo
+import org.lsst.dax.albuquery.dao.HistoryDAO
+import org.lsst.dax.albuquery.model.history.Job
+import org.slf4j.LoggerFactory
+import java.nio.file.Path
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+
+/**
+ * Keeps track of jobs.
+ *
+ * Jobs are held in memory while they run, and for [JobStoreConfiguration.hotTtlSeconds]
+ * once they have finished. Every job is also recorded in the job database,
+ * which answers for finished jobs once they have left memory, and survives
+ * restarts. Records are written on a single thread, off the query workers.
+ *
+ * Jobs are destroyed, along with their results, by the [ResultReaper].
+ * Jobs which were cut short by a restart are marked as ERROR on startup.
+ *
+ * @property basePath Directory holding the result directories of jobs
+ */
+class JobStore(
+    private val basePath: Path,
+    private val history: HistoryDAO,
+    private val config: JobStoreConfiguration
+) : Managed {
+
+    private class Entry(val task: QueryTask) {
+        @Volatile var finishedAt = 0L
+        @Volatile var accessedAt = 0L
+    }
+
+    private val hotJobs = ConcurrentHashMap<String, Entry>()
+    // Writes to the job database, and evicts jobs
+    private val executor: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor(
+        ThreadFactoryBuilder().setNameFormat("job-store-%d").build())
+
+    fun add(task: QueryTask) {
+        val entry = Entry(task)
+        hotJobs[task.queryId] = entry
+        task.phaseInfo.addListener { onPhaseChange(entry) }
+        // The job may have been aborted already
+        onPhaseChange(entry)
+    }
+
+    /**
+     * A job which is still in memory.
+     */
+    fun findTask(queryId: String): QueryTask? {
+        return hotJobs[queryId]?.task
+    }
+
+    fun findJob(queryId: String): Job? {
+        val entry = hotJobs[queryId]
+        return if (entry != null) jobOf(entry) else history.findJob(queryId)
+    }
+
+    /**
+     * The phase of a job. For jobs no longer in memory, this is a copy
+     * which won't change.
+     */
+    fun findPhaseInfo(queryId: String): PhaseInfo? {
+        val entry = hotJobs[queryId]
+        if (entry != null) {
+            return entry.task.phaseInfo
+        }
+        val job = history.findJob(queryId) ?: return null
+        val phaseInfo = PhaseInfo(job.queryId, ExecutionPhase.valueOf(job.phase))
+        phaseInfo.parameters = job.parameters
+        phaseInfo.format = job.format
+        phaseInfo.errorFile = job.errorFile
+        return phaseInfo
+    }
+
+    /**
+     * Abort a job, if needed, and remove it and its results.
+     *
+     * @return false if there is no such job
+     */
+    fun delete(queryId: String): Boolean {
+        val entry = hotJobs.remove(queryId)
+        if (entry != null) {
+            entry.task.destroy()
+        } else if (history.findJob(queryId) != null) {
+            basePath.resolve(queryId).toFile().deleteRecursively()
+        } else {
+            return false
+        }
+        executor.execute { history.deleteJob(queryId) }
+        return true
+    }
+
+    /**
+     * Record that the results of a job were retrieved.
+     */
+    fun touch(queryId: String) {
+        val now = System.currentTimeMillis()
+        hotJobs[queryId]?.accessedAt = now
+        executor.execute { history.touchJob(queryId, now) }
+    }
+
+    /**
+     * Whether a job is still queued or running.
+     */
+    fun isActive(queryId: String): Boolean {
+        return hotJobs[queryId]?.task?.phaseInfo?.phase?.isFinished == false
+    }
+
+    fun findFinishedJobs(): List<Job> {
+        return history.findFinishedJobs()
+    }
+
+    /**
+     * Ids of every job, in memory or recorded.
+     */
+    fun findJobIds(): Set<String> {
+        return history.findJobIds().toHashSet().apply { addAll(hotJobs.keys) }
+    }
+
+    val hotJobCount: Int
+        get() = hotJobs.size
+
+    private fun onPhaseChange(entry: Entry) {
+        if (entry.task.phaseInfo.phase.isFinished && entry.finishedAt == 0L) {
+            entry.finishedAt = System.currentTimeMillis()
+        }
+        val job = jobOf(entry)
+        executor.execute {
+            // Deleted jobs aren't recorded again
+            if (hotJobs[job.queryId] === entry) {
+                history.saveJob(job)
+            }
+        }
+    }
+
+    private fun jobOf(entry: Entry): Job {
+        val task = entry.task
+        val phaseInfo = task.phaseInfo
+        return Job(
+            queryId = task.queryId,
+            owner = task.owner,
+            phase = phaseInfo.phase.name,
+            parameters = phaseInfo.parameters,
+            format = phaseInfo.format,
+            errorFile = phaseInfo.errorFile,
+            executionDuration = task.executionDuration,
+            createdAt = task.createdAt,
+            finishedAt = if (entry.finishedAt == 0L) null else entry.finishedAt,
+            accessedAt = if (entry.accessedAt == 0L) null else entry.accessedAt,
+            destructionAt = task.destructionAt
+        )
+    }
+
+    private fun evict() {
+        val now = System.currentTimeMillis()
+        val hotTtl = TimeUnit.SECONDS.toMillis(config.hotTtlSeconds)
+        for ((queryId, entry) in hotJobs) {
+            if (entry.finishedAt != 0L && now - entry.finishedAt > hotTtl) {
+                hotJobs.remove(queryId, entry)
+            }
+        }
+    }
+
+    fun registerMetrics(metrics: MetricRegistry) {
+        metrics.register(MetricRegistry.name(JobStore::class.java, "hotJobs"), Gauge<Int> { hotJobCount })
+    }
+
+    override fun start() {
+        history.createJobTable()
+        migrateJobTable()
+        history.createJobFinishedIndex()
+        val interrupted = history.finishInterruptedJobs(ExecutionPhase.ERROR.name, System.currentTimeMillis())
+        if (interrupted > 0) {
+            LOGGER.warn("$interrupted jobs were interrupted by a restart")
+        }
+        executor.scheduleWithFixedDelay({ evict() }, config.evictionIntervalSeconds,
+            config.evictionIntervalSeconds, TimeUnit.SECONDS)
+    }
+
+    /*
+    * Add the columns a job table from an earlier version lacks.
+    */
+    private fun migrateJobTable() {
+        val columns = history.findJobColumns()
+        if ("accessed_at" !in columns) {
+            history.addJobAccessedAt()
+        }
+        if ("destruction_at" !in columns) {
+            history.addJobDestructionAt()
+            history.setMissingDestruction(TimeUnit.SECONDS.toMillis(config.ttlSeconds))
+            LOGGER.info("Added destruction times to the job table")
+        }
+    }
+
+    override fun stop() {
+        // Finish writing the records of jobs
+        executor.shutdown()
+        executor.awaitTermination(10, TimeUnit.SECONDS)
+    }
+
+    companion object {
+        // File name of the job database, in the base path
+        const val JOB_DATABASE = "jobs.sqlite"
+        private val LOGGER = LoggerFactory.getLogger(JobStore::class.java)
+    }
+}
@@ -0,0 +1,213 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.lsst.dax.albuquery.tasks
+
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.Timer
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import io.dropwizard.lifecycle.Managed
+import org.slf4j.LoggerFactory
+import java.net.URI
+import java.util.ArrayDeque
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.FutureTask
+import java.util.concurrent.TimeUnit
+
+/**
+ * Schedules query tasks on a bounded pool of workers.
+ *
+ * At most [maxConcurrentQueries] tasks run at once, and at most
+ * [maxQueriesPerBackend] against any one database instance. Queued tasks are
+ * dispatched fairly across owners: the owner with the fewest running tasks
+ * goes first, ties going to the owner served least recently.
+ *
+ * A task stays in the QUEUED phase until it is dispatched to a worker.
+ * A dispatched task holds its slot until its worker returns, even when
+ * it's cancelled.
+ *
+ * Owners come from [org.lsst.dax.albuquery.resources.Async.ownerOf].
+ * Unless requests are authenticated, every task is owned by
+ * [QueryTask.ANONYMOUS_OWNER] and dispatch is first come, first served.
+ */
+class QueryScheduler(
+    val maxConcurrentQueries: Int,
+    val maxQueriesPerBackend: Int
+) : Managed {
+
+    private class OwnerState {
+        val queue = ArrayDeque<Entry<*>>()
+        var running = 0
+        var lastDispatch = 0L
+    }
+
+    private inner class Entry<T>(callable: Callable<T>, val owner: String, val backend: String) :
+        FutureTask<T>(callable) {
+        val submitted = System.nanoTime()
+        // Guarded by the scheduler lock
+        var dispatched = false
+
+        override fun run() {
+            waitTimer.update(System.nanoTime() - submitted, TimeUnit.NANOSECONDS)
+            try {
+                super.run()
+            } finally {
+                onFinished(this)
+            }
+        }
+
+        override fun done() {
+            onDone(this)
+        }
+    }
+
+    private val lock = Any()
+    private val owners = hashMapOf<String, OwnerState>()
+    private val runningPerBackend = hashMapOf<String, Int>()
+    private var running = 0
+    private var queued = 0
+    private var dispatchCount = 0L
+    private val waitTimer = Timer()
+    private val workers: ExecutorService = Executors.newFixedThreadPool(maxConcurrentQueries,
+        ThreadFactoryBuilder().setNameFormat("query-worker-%d").build())
+
+    fun submit(task: QueryTask): Future<QueryTask> {
+        return submit(task, task.owner, backendKey(task.dbUri))
+    }
+
+    fun <T> submit(callable: Callable<T>, owner: String, backend: String): Future<T> {
+        val entry = Entry(callable, owner, backend)
+        synchronized(lock) {
+            owners.getOrPut(owner) { OwnerState() }.queue.add(entry)
+            queued++
+            dispatch()
+        }
+        return entry
+    }
+
+    val queueDepth: Int
+        get() = synchronized(lock) { queued }
+
+    val runningQueries: Int
+        get() = synchronized(lock) { running }
+
+    // Must hold lock
+    private fun dispatch() {
+        while (running < maxConcurrentQueries) {
+            var next: Entry<*>? = null
+            var nextOwner: OwnerState? = null
+            for (owner in owners.values) {
+                val entry = owner.queue.firstOrNull { hasCapacity(it.backend) } ?: continue
+                if (nextOwner == null || owner.running < nextOwner.running ||
+                    (owner.running == nextOwner.running && owner.lastDispatch < nextOwner.lastDispatch)) {
+                    next = entry
+                    nextOwner = owner
+                }
+            }
+            if (next == null || nextOwner == null) {
+                return
+            }
+            nextOwner.queue.remove(next)
+            nextOwner.running++
+            nextOwner.lastDispatch = ++dispatchCount
+            queued--
+            running++
+            runningPerBackend[next.backend] = (runningPerBackend[next.backend] ?: 0) + 1
+            next.dispatched = true
+            workers.execute(next)
+        }
+    }
+
+    private fun hasCapacity(backend: String): Boolean {
+        return (runningPerBackend[backend] ?: 0) < maxQueriesPerBackend
+    }
+
+    private fun onDone(entry: Entry<*>) {
+        synchronized(lock) {
+            // Dispatched entries are released once their worker returns, see onFinished
+            if (entry.dispatched) {
+                return
+            }
+            val owner = owners[entry.owner] ?: return
+            if (owner.queue.remove(entry)) {
+                // Cancelled while queued
+                queued--
+            }
+            removeIfIdle(entry.owner, owner)
+            dispatch()
+        }
+    }
+
+    private fun onFinished(entry: Entry<*>) {
+        synchronized(lock) {
+            val owner = owners[entry.owner] ?: return
+            owner.running--
+            running--
+            val backendRunning = (runningPerBackend[entry.backend] ?: 1) - 1
+            if (backendRunning == 0) {
+                runningPerBackend.remove(entry.backend)
+            } else {
+                runningPerBackend[entry.backend] = backendRunning
+            }
+            removeIfIdle(entry.owner, owner)
+            dispatch()
+        }
+    }
+
+    // Must hold lock
+    private fun removeIfIdle(name: String, owner: OwnerState) {
+        if (owner.running == 0 && owner.queue.isEmpty()) {
+            owners.remove(name)
+        }
+    }
+
+    fun registerMetrics(metrics: MetricRegistry) {
+        metrics.register(MetricRegistry.name(QueryScheduler::class.java, "queueDepth"), Gauge<Int> { queueDepth })
+        metrics.register(MetricRegistry.name(QueryScheduler::class.java, "running"), Gauge<Int> { runningQueries })
+        metrics.register(MetricRegistry.name(QueryScheduler::class.java, "waitTime"), waitTimer)
+    }
+
+    override fun start() {
+    }
+
+    override fun stop() {
+        workers.shutdownNow()
+        // Running queries still finish their jobs, which the job store must see
+        if (!workers.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            LOGGER.warn("Queries still running after ${STOP_TIMEOUT_SECONDS}s")
+        }
+    }
+
+    companion object {
+        private const val STOP_TIMEOUT_SECONDS = 30L
+        private val LOGGER = LoggerFactory.getLogger(QueryScheduler::class.java)
+
+        /*
+        * Database instance a query runs against. The path of the URI is just the default schema.
+        */
+        fun backendKey(dbUri: URI): String = "${dbUri.host}:${dbUri.port}"
+    }
+}
@@ -22,107 +22,337 @@
 
 package org.lsst.dax.albuquery.tasks
 
-import com.facebook.presto.sql.SqlFormatter
-import com.facebook.presto.sql.tree.Statement
 import com.fasterxml.jackson.databind.ObjectMapper
-import org.lsst.dax.albuquery.Analyzer.TableAndColumnExtractor
 import org.lsst.dax.albuquery.CONFIG
+import org.lsst.dax.albuquery.DEFAULT_QUERY_FETCH_BUDGET
+import org.lsst.dax.albuquery.MEMORY_GOVERNOR
 import org.lsst.dax.albuquery.PhaseInfo
+import org.lsst.dax.albuquery.PreparedQuery
+import org.lsst.dax.albuquery.QUERY_SETUP_EXECUTOR
+import org.lsst.dax.albuquery.QUERY_WATCHDOG_EXECUTOR
 import org.lsst.dax.albuquery.ErrorResponse
-import org.lsst.dax.albuquery.ParsedTable
+import org.lsst.dax.albuquery.ExecutionPhase
 import org.lsst.dax.albuquery.QueryMetadataHelper
 import org.lsst.dax.albuquery.RowStreamIterator
 import org.lsst.dax.albuquery.dao.MetaservDAO
 import org.lsst.dax.albuquery.SERVICE_ACCOUNT_CONNECTIONS
+import org.lsst.dax.albuquery.SERIALIZER_BUFFER_BYTES
+import org.lsst.dax.albuquery.awaitSetup
 import org.lsst.dax.albuquery.lookupMetadata
 import org.lsst.dax.albuquery.resources.Async.AsyncResponse
 import org.lsst.dax.albuquery.resources.Async.ResponseMetadata
+import org.lsst.dax.albuquery.results.SqliteResult
+import org.slf4j.LoggerFactory
+import java.io.IOException
 import java.net.URI
 import java.nio.file.Path
 import java.nio.file.Files
 import java.nio.file.Paths
 import java.sql.SQLException
-import java.util.Optional
+import java.sql.Statement
 import java.util.concurrent.Callable
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+import java.util.function.Supplier
+
+class QueryAbortedException(queryId: String) : Exception("Query $queryId was aborted")
+
+/**
+ * A snapshot of the progress of a query.
+ *
+ * @property rowsFetched Rows fetched from the database so far
+ * @property bytesWritten Size of the result file so far
+ * @property rowsPerSecond Rows fetched per second
+ * @property elapsedMillis Time the query has been executing, or took to execute
+ */
+data class QueryProgress(
+    val phase: ExecutionPhase,
+    val rowsFetched: Long,
+    val bytesWritten: Long,
+    val rowsPerSecond: Double,
+    val elapsedMillis: Long
+)
 
 /**
  * A Task for generic databases.
  *
+ * A task can be aborted at any time. Once it's running, the database is
+ * asked to cancel the statement, which releases the connection and the
+ * worker thread, and partial results are removed. A task still waiting for
+ * memory or for its setup gives up within [org.lsst.dax.albuquery.CANCELLATION_POLL_MS].
+ *
  * @property metaservDAO metaserv DAO object. Used to lookup metadata in metaserv
  * @property queryId Id of query being processed. Used to store results to disk.
- * @property queryStatement Query statement
- * to disk.
+ * @property preparedQuery The query, rewritten for its database
+ * @property owner Name of the user who submitted the query
+ * @property maxRec Maximum number of rows to return, if any
+ * @property executionDuration Seconds the query may run before it's aborted, 0 for no limit
+ * @property destructionAt Time the job is destroyed, in milliseconds since the epoch
  */
 class QueryTask(
     val metaservDAO: MetaservDAO,
-    val dbUri: URI,
     val queryId: String,
-    val queryStatement: Statement,
-    val qualifiedTables: List<ParsedTable>,
-    val objectMapper: ObjectMapper?
+    val preparedQuery: PreparedQuery,
+    val objectMapper: ObjectMapper?,
+    val owner: String = ANONYMOUS_OWNER,
+    val maxRec: Long? = null,
+    val executionDuration: Long = 0,
+    val destructionAt: Long = Long.MAX_VALUE
 ) : Callable<QueryTask> {
 
-    val columnAnalyzer: TableAndColumnExtractor
-    val phaseInfo: PhaseInfo
+    val phaseInfo: PhaseInfo = PhaseInfo(identifier = queryId)
+
+    // Milliseconds since the epoch
+    val createdAt = System.currentTimeMillis()
+
+    // The scheduled execution of this task, set when it's submitted
+    @Volatile
+    lateinit var completion: Future<QueryTask>
+
+    // Completed once the task has finished, whether it ran or not
+    val finished = CompletableFuture<QueryTask>()
+
+    val dbUri: URI
+        get() = preparedQuery.dbUri
+
+    private class AbortRequest(val error: String?)
+
+    private val abortRequest = AtomicReference<AbortRequest?>()
+    private val statement = AtomicReference<Statement?>()
+    @Volatile
+    private var destroyed = false
+
+    // Progress counters. The iterator is only held while the query runs.
+    @Volatile
+    private var runningIterator: RowStreamIterator? = null
+    @Volatile
+    private var rowsFetched = 0L
+    @Volatile
+    private var executionStart = 0L
+    @Volatile
+    private var executionEnd = 0L
+
+    private val aborted: Boolean
+        get() = abortRequest.get() != null
+
+    companion object {
+        const val ANONYMOUS_OWNER = "anonymous"
+        private val LOGGER = LoggerFactory.getLogger(QueryTask::class.java)
+    }
+
+    val progress: QueryProgress
+        get() {
+            val phase = phaseInfo.phase
+            val start = executionStart
+            val end = executionEnd
+            val elapsed = when {
+                start == 0L -> 0L
+                end != 0L -> end - start
+                else -> System.nanoTime() - start
+            }
+            val rows = runningIterator?.rowCount ?: rowsFetched
+            val rowsPerSecond = if (elapsed > 0) rows * 1e9 / elapsed else 0.0
+            // Zero if there's no result file yet
+            val bytesWritten = resultDir().resolve("result").toFile().length()
+            return QueryProgress(phase, rows, bytesWritten, rowsPerSecond, TimeUnit.NANOSECONDS.toMillis(elapsed))
+        }
 
-    init {
-        phaseInfo = PhaseInfo(identifier = queryId, phase = "PENDING")
-        columnAnalyzer = TableAndColumnExtractor()
-        queryStatement.accept(columnAnalyzer, null)
+    /**
+     * Abort the query. A queued query is never run, a running query is
+     * cancelled in the database.
+     *
+     * @param error Reason to report, which makes the query end in ERROR instead of ABORTED
+     * @return false if the query had already finished or been aborted
+     */
+    fun abort(error: String? = null): Boolean {
+        if (phaseInfo.phase.isFinished || !abortRequest.compareAndSet(null, AbortRequest(error))) {
+            return false
+        }
+        for (phase in listOf(ExecutionPhase.PENDING, ExecutionPhase.QUEUED)) {
+            if (phaseInfo.transition(phase, ExecutionPhase.ABORTED)) {
+                // call() will never run, or will return right away
+                if (this::completion.isInitialized) {
+                    completion.cancel(false)
+                }
+                finished.complete(this)
+                return true
+            }
+        }
+        LOGGER.info("Aborting query $queryId")
+        try {
+            // MariaDB's driver sends a KILL QUERY on a separate connection
+            statement.get()?.cancel()
+        } catch (ex: SQLException) {
+            LOGGER.warn("Unable to cancel query $queryId", ex)
+        }
+        return true
     }
 
-    private fun replaceBooleanLiterals(query: String): String {
-        var replacement = query.substringAfter("WHERE ")
-        replacement = replacement.replace("true", "1").replace("false", "0")
-        return query.replaceAfter("WHERE ", replacement)
+    /**
+     * Abort the query, if needed, and remove its results.
+     */
+    fun destroy() {
+        destroyed = true
+        if (!abort()) {
+            resultDir().toFile().deleteRecursively()
+        }
     }
 
     override fun call(): QueryTask {
-        val resultDir = Files.createDirectory(Paths.get(CONFIG?.DAX_BASE_PATH).resolve(queryId))
-        // This might be better off if it's done asynchronously, but we need some of the information
-        val metaservInfo = lookupMetadata(metaservDAO, qualifiedTables)
-        // Submit for data processing
-        var query = SqlFormatter.formatSql(queryStatement, Optional.empty())
-        // FIXME: MySQL specific hack because we can't coax Qserv to ANSI compliance
-        query = query.replace("\"", "")
-        // FIXME: hack due to qserv's current parser's limitation on handling top-level groupings
-        var regex = """WHERE \(qserv_(.+)\)$""".toRegex()
-        query = query.replace(regex, "WHERE qserv_$1")
-        // FIXME: Really our mysql-proxy should be able to handle Boolean: true or false
-        if (phaseInfo.hasBooleanLiterals)
-            query = replaceBooleanLiterals(query)
-        val rowIterator: RowStreamIterator
         try {
-            val conn = SERVICE_ACCOUNT_CONNECTIONS.getConnection(dbUri)
-            rowIterator = RowStreamIterator(conn, query, resultDir)
-        } catch (ex: SQLException) {
-            val error = ErrorResponse(ex.message, "SQLException",
-                ex.getSQLState(), ex.errorCode.toString())
-            val errorFile = resultDir.resolve("error")
-            objectMapper?.writeValue(Files.newBufferedWriter(errorFile), error)
-            phaseInfo.phase = "ERROR"
-            phaseInfo.errorFile = errorFile.toString()
-            return this
+            return run()
+        } finally {
+            finished.complete(this)
         }
+    }
 
-        val columnMetadataList = QueryMetadataHelper(columnAnalyzer)
-            .associateMetadata(rowIterator.jdbcColumnMetadata, metaservInfo)
-
-        val entity = AsyncResponse(
-            queryId = queryId,
-            metadata = ResponseMetadata(columnMetadataList),
-            results = rowIterator
-        )
-        // Write metadata?
-        // objectMapper.writeValue(Files.newBufferedWriter(resultDir.resolve("metadata.json")), entity.metadata)
-        val resultPath: Path = resultDir.resolve("result")
-        /**
-         * May want to find provider ahead of time or cycle through a list of providers
-         * @see javax.ws.rs.ext.MessageBodyWriter.isWriteable
-         * @see javax.ws.rs.ext.MessageBodyWriter.writeTo
-         */
-        objectMapper?.writeValue(Files.newBufferedWriter(resultPath), entity)
-        phaseInfo.phase = "COMPLETED"
+    private fun run(): QueryTask {
+        if (!phaseInfo.transition(ExecutionPhase.QUEUED, ExecutionPhase.EXECUTING)) {
+            // Aborted while queued
+            return this
+        }
+        executionStart = System.nanoTime()
+        val watchdog = if (executionDuration > 0) {
+            QUERY_WATCHDOG_EXECUTOR.schedule(Callable {
+                abort("Query exceeded its execution duration of $executionDuration seconds")
+            }, executionDuration, TimeUnit.SECONDS)
+        } else null
+        val resultDir = resultDir()
+        try {
+            Files.createDirectory(resultDir)
+            execute(resultDir)
+        } catch (ex: Exception) {
+            // Whatever failed, failed because the query was cancelled
+            if (!aborted) {
+                writeError(resultDir, ErrorResponse(ex.message, ex.javaClass.simpleName, null, null))
+                throw ex
+            }
+        } finally {
+            watchdog?.cancel(false)
+            statement.set(null)
+            executionEnd = System.nanoTime()
+        }
+        if (aborted) {
+            finishAborted(resultDir)
+        }
         return this
     }
+
+    private fun execute(resultDir: Path) {
+        // Submit for data processing
+        val backendQuery = preparedQuery.backendQuery(maxRec)
+        // Wait for memory before opening the backend cursor. Fetching is bounded by the fetch budget.
+        val fetchBudget = CONFIG?.DAX_QUERY_FETCH_BUDGET ?: DEFAULT_QUERY_FETCH_BUDGET
+        val reservation = MEMORY_GOVERNOR.reserve(queryId, fetchBudget + SERIALIZER_BUFFER_BYTES) { aborted }
+        // Metadata is only needed once the query has returned, so it's looked up
+        // while the connection and the result database are set up.
+        val metaservInfo = CompletableFuture.supplyAsync(
+            Supplier { lookupMetadata(metaservDAO, preparedQuery.qualifiedTables) }, QUERY_SETUP_EXECUTOR)
+        val connection = CompletableFuture.supplyAsync(
+            Supplier { SERVICE_ACCOUNT_CONNECTIONS.getConnection(dbUri) }, QUERY_SETUP_EXECUTOR)
+        val resultDatabase = CompletableFuture.supplyAsync(
+            Supplier { SqliteResult.openResultDatabase(resultDir.resolve(SqliteResult.RESULT_DATABASE)) },
+            QUERY_SETUP_EXECUTOR)
+        try {
+            val rowIterator: RowStreamIterator
+            try {
+                rowIterator = RowStreamIterator(awaitSetup(connection) { aborted }, backendQuery.sql, resultDir,
+                    fetchBudget, resultDatabase, backendQuery.maxRows, onStatement = { registerStatement(it) })
+            } catch (ex: Exception) {
+                // Nothing owns the connections yet
+                connection.thenAccept { it.close() }
+                resultDatabase.thenAccept { it.close() }
+                if (ex !is SQLException || aborted) {
+                    throw ex
+                }
+                val error = ErrorResponse(ex.message, "SQLException",
+                    ex.getSQLState(), ex.errorCode.toString())
+                writeError(resultDir, error)
+                return
+            }
+            reservation.shrink(rowIterator.fetchPlan.plannedBufferedBytes + SERIALIZER_BUFFER_BYTES)
+            runningIterator = rowIterator
+
+            val columnMetadataList = QueryMetadataHelper(preparedQuery.analysis)
+                .associateMetadata(rowIterator.jdbcColumnMetadata, awaitSetup(metaservInfo) { aborted })
+
+            val entity = AsyncResponse(
+                queryId = queryId,
+                metadata = ResponseMetadata(columnMetadataList),
+                results = rowIterator
+            )
+            val resultPath: Path = resultDir.resolve("result")
+            /**
+             * May want to find provider ahead of time or cycle through a list of providers
+             * @see javax.ws.rs.ext.MessageBodyWriter.isWriteable
+             * @see javax.ws.rs.ext.MessageBodyWriter.writeTo
+             */
+            objectMapper?.let { mapper -> Files.newBufferedWriter(resultPath).use { mapper.writeValue(it, entity) } }
+        } finally {
+            reservation.close()
+            runningIterator?.let {
+                // Results which weren't written out still hold the connections, the statement and the writer
+                closeQuietly(it)
+                rowsFetched = it.rowCount
+                runningIterator = null
+            }
+        }
+        if (!aborted) {
+            phaseInfo.transition(ExecutionPhase.EXECUTING, ExecutionPhase.COMPLETED)
+        }
+    }
+
+    private fun closeQuietly(rowIterator: RowStreamIterator) {
+        try {
+            rowIterator.cleanup()
+        } catch (ex: Exception) {
+            // Don't hide the exception the query failed with
+            LOGGER.warn("Unable to clean up query $queryId", ex)
+        }
+    }
+
+    private fun registerStatement(stmt: Statement) {
+        statement.set(stmt)
+        // A statement can only be cancelled once it's executing
+        if (aborted) {
+            throw QueryAbortedException(queryId)
+        }
+    }
+
+    private fun finishAborted(resultDir: Path) {
+        if (phaseInfo.phase != ExecutionPhase.EXECUTING) {
+            // Finished before it could be cancelled
+            return
+        }
+        if (destroyed) {
+            resultDir.toFile().deleteRecursively()
+            phaseInfo.transition(ExecutionPhase.EXECUTING, ExecutionPhase.ABORTED)
+            return
+        }
+        // Partial results are of no use
+        Files.deleteIfExists(resultDir.resolve("result"))
+        Files.deleteIfExists(resultDir.resolve(SqliteResult.RESULT_DATABASE))
+        val error = abortRequest.get()?.error
+        if (error != null) {
+            writeError(resultDir, ErrorResponse(error, QueryAbortedException::class.java.simpleName, null, null))
+        } else {
+            phaseInfo.transition(ExecutionPhase.EXECUTING, ExecutionPhase.ABORTED)
+        }
+    }
+
+    private fun writeError(resultDir: Path, error: ErrorResponse) {
+        val errorFile = resultDir.resolve("error")
+        try {
+            objectMapper?.let { mapper -> Files.newBufferedWriter(errorFile).use { mapper.writeValue(it, error) } }
+            phaseInfo.errorFile = errorFile.toString()
+        } catch (ex: IOException) {
+            // Possibly no result directory. The query still ends in ERROR, without the details.
+            LOGGER.warn("Unable to write error for query $queryId", ex)
+        }
+        phaseInfo.transition(ExecutionPhase.EXECUTING, ExecutionPhase.ERROR)
+    }
+
+    private fun resultDir(): Path = Paths.get(CONFIG?.DAX_BASE_PATH).resolve(queryId)
 }
@@ -0,0 +1,197 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.lsst.dax.albuquery.tasks
+
+import com.codahale.metrics.Counter
+import com.codahale.metrics.Gauge
+import com.codahale.metrics.MetricRegistry
+import com.google.common.util.concurrent.ThreadFactoryBuilder
+import io.dropwizard.lifecycle.Managed
+import org.lsst.dax.albuquery.ResultQuotaConfiguration
+import org.slf4j.LoggerFactory
+import java.io.File
+import java.nio.file.Path
+import java.util.UUID
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+
+/**
+ * Removes result directories.
+ *
+ * Each run destroys finished jobs past their destruction time, removes
+ * result directories which don't belong to any job, and then enforces the disk
+ * quotas of [ResultQuotaConfiguration], per owner and overall. Only
+ * finished jobs are evicted, the ones whose results were retrieved least
+ * recently going first. Running jobs still count towards the quotas.
+ *
+ * @property basePath Directory holding the result directories of jobs
+ */
+class ResultReaper(
+    private val basePath: Path,
+    private val jobStore: JobStore,
+    private val config: ResultQuotaConfiguration
+) : Managed {
+
+    /**
+     * Disk used by the results of a job.
+     *
+     * @property lastUsed Time the results were last retrieved, or written
+     * @property finished Whether the job may be evicted
+     */
+    data class Usage(
+        val queryId: String,
+        val owner: String,
+        val lastUsed: Long,
+        val bytes: Long,
+        val finished: Boolean
+    )
+
+    private val executor: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor(
+        ThreadFactoryBuilder().setNameFormat("result-reaper-%d").build())
+    private val reapedJobs = Counter()
+    private val reapedBytes = Counter()
+    @Volatile private var resultBytes = 0L
+
+    fun reap() {
+        val now = System.currentTimeMillis()
+        // Read known jobs first, so jobs finishing meanwhile are still known
+        val knownIds = jobStore.findJobIds()
+        val finishedJobs = jobStore.findFinishedJobs().associateBy { it.queryId }
+        for (job in finishedJobs.values) {
+            if (job.destructionAt <= now && jobStore.delete(job.queryId)) {
+                reapedJobs.inc()
+            }
+        }
+
+        val usages = arrayListOf<Usage>()
+        val directories = basePath.toFile().listFiles { file -> file.isDirectory } ?: arrayOf()
+        for (directory in directories) {
+            val queryId = directory.name
+            val finishedJob = finishedJobs[queryId]
+            if (finishedJob != null) {
+                if (finishedJob.destructionAt > now) {
+                    val lastUsed = finishedJob.accessedAt ?: finishedJob.finishedAt ?: finishedJob.createdAt
+                    usages.add(Usage(queryId, finishedJob.owner, lastUsed, sizeOf(directory), true))
+                }
+            } else if (queryId in knownIds) {
+                val job = jobStore.findJob(queryId) ?: continue
+                usages.add(Usage(queryId, job.owner, now, sizeOf(directory), false))
+            } else if (!isJobId(queryId)) {
+                // The base path may hold other files, which aren't ours to remove
+                LOGGER.debug("Skipping $directory, which isn't a result directory")
+            } else if (now - directory.lastModified() > ORPHAN_AGE_MILLIS) {
+                // Left behind by a crash, or by a job which was deleted while it was written
+                LOGGER.info("Removing orphaned result directory $directory")
+                reapedBytes.inc(sizeOf(directory))
+                directory.deleteRecursively()
+            }
+        }
+
+        var totalBytes = usages.map { it.bytes }.sum()
+        for (usage in overQuota(usages, config.maxBytes, config.maxBytesPerOwner)) {
+            if (jobStore.delete(usage.queryId)) {
+                reapedJobs.inc()
+                reapedBytes.inc(usage.bytes)
+                totalBytes -= usage.bytes
+            }
+        }
+        resultBytes = totalBytes
+    }
+
+    fun registerMetrics(metrics: MetricRegistry) {
+        metrics.register(MetricRegistry.name(ResultReaper::class.java, "reapedJobs"), reapedJobs)
+        metrics.register(MetricRegistry.name(ResultReaper::class.java, "reapedBytes"), reapedBytes)
+        metrics.register(MetricRegistry.name(ResultReaper::class.java, "resultBytes"), Gauge<Long> { resultBytes })
+    }
+
+    override fun start() {
+        executor.scheduleWithFixedDelay({
+            try {
+                reap()
+            } catch (ex: Exception) {
+                // Keep reaping on the next run
+                LOGGER.error("Unable to reap results", ex)
+            }
+        }, config.intervalSeconds, config.intervalSeconds, TimeUnit.SECONDS)
+    }
+
+    override fun stop() {
+        executor.shutdownNow()
+    }
+
+    companion object {
+        // Directories of unknown jobs are left alone for this long, they may belong to a job being created
+        val ORPHAN_AGE_MILLIS = TimeUnit.HOURS.toMillis(1)
+        private val LOGGER = LoggerFactory.getLogger(ResultReaper::class.java)
+
+        /**
+         * The finished jobs to evict to bring usage under quota, least
+         * recently used first. Per owner quotas are enforced before the
+         * overall quota. A quota of 0 is unlimited.
+         */
+        fun overQuota(usages: List<Usage>, maxBytes: Long, maxBytesPerOwner: Long): List<Usage> {
+            val leastRecentlyUsed = usages.filter { it.finished }.sortedBy { it.lastUsed }
+            val victims = linkedSetOf<Usage>()
+            if (maxBytesPerOwner > 0) {
+                val ownerBytes = usages.groupBy { it.owner }.mapValuesTo(hashMapOf()) { (_, owned) ->
+                    owned.map { it.bytes }.sum()
+                }
+                for (usage in leastRecentlyUsed) {
+                    val bytes = ownerBytes.getValue(usage.owner)
+                    if (bytes > maxBytesPerOwner) {
+                        victims.add(usage)
+                        ownerBytes[usage.owner] = bytes - usage.bytes
+                    }
+                }
+            }
+            if (maxBytes > 0) {
+                var totalBytes = usages.map { it.bytes }.sum() - victims.map { it.bytes }.sum()
+                for (usage in leastRecentlyUsed) {
+                    if (totalBytes <= maxBytes) {
+                        break
+                    }
+                    if (victims.add(usage)) {
+                        totalBytes -= usage.bytes
+                    }
+                }
+            }
+            return victims.toList()
+        }
+
+        /*
+        * Whether a directory name is a job id. Only those directories are ever removed as orphans.
+        */
+        fun isJobId(name: String): Boolean {
+            return try {
+                UUID.fromString(name).toString() == name
+            } catch (ex: IllegalArgumentException) {
+                false
+            }
+        }
+
+        private fun sizeOf(directory: File): Long {
+            // Files may be removed meanwhile, length() is 0 for those
+            return directory.walkTopDown().filter { it.isFile }.map { it.length() }.sum()
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.lsst.dax.albuquery
+
+import org.junit.Test
+import java.util.concurrent.CancellationException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+
+class MemoryGovernorTest {
+
+    @Test
+    fun reserveBlocksUntilReleased() {
+        val governor = MemoryGovernor(4 * 1024)
+        val first = governor.reserve("first", 3 * 1024)
+        assert(governor.reservedBytes == 3 * 1024L)
+        assert(governor.reservedBytesFor("first") == 3 * 1024L)
+
+        val acquired = CountDownLatch(1)
+        val waiter = Thread {
+            governor.reserve("second", 2 * 1024)
+            acquired.countDown()
+        }
+        waiter.start()
+        assert(!acquired.await(200, TimeUnit.MILLISECONDS))
+
+        first.shrink(2 * 1024)
+        assert(acquired.await(5, TimeUnit.SECONDS))
+        assert(governor.reservedBytes == 4 * 1024L)
+
+        first.close()
+        first.close()
+        assert(governor.reservedBytes == 2 * 1024L)
+        assert(governor.reservedBytesFor("first") == 0L)
+    }
+
+    @Test
+    fun reserveIsCancellable() {
+        val governor = MemoryGovernor(4 * 1024)
+        val first = governor.reserve("first", 4 * 1024)
+        val cancelled = AtomicBoolean()
+        val failure = AtomicReference<Throwable>()
+        val waiter = Thread {
+            try {
+                governor.reserve("second", 1024) { cancelled.get() }
+            } catch (ex: CancellationException) {
+                failure.set(ex)
+            }
+        }
+        waiter.start()
+        cancelled.set(true)
+        waiter.join(5000)
+        assert(failure.get() is CancellationException)
+        first.close()
+        assert(governor.availableBytes == 4 * 1024L)
+    }
+
+    @Test
+    fun oversizedRequestsAreCapped() {
+        val governor = MemoryGovernor(4 * 1024)
+        val reservation = governor.reserve("big", 1024 * 1024)
+        assert(reservation.bytes == 4 * 1024L)
+        reservation.close()
+        assert(governor.availableBytes == 4 * 1024L)
+    }
+}
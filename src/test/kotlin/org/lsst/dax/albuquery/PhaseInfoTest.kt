@@ -0,0 +1,72 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.lsst.dax.albuquery
+
+import org.junit.Test
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+
+class PhaseInfoTest {
+
+    @Test
+    fun phaseOnlyMovesForward() {
+        val phaseInfo = PhaseInfo("test")
+        assert(phaseInfo.phase == ExecutionPhase.PENDING)
+        assert(phaseInfo.transition(ExecutionPhase.PENDING, ExecutionPhase.QUEUED))
+        assert(!phaseInfo.transition(ExecutionPhase.PENDING, ExecutionPhase.QUEUED))
+        assert(phaseInfo.transition(ExecutionPhase.QUEUED, ExecutionPhase.EXECUTING))
+        assert(phaseInfo.transition(ExecutionPhase.EXECUTING, ExecutionPhase.COMPLETED))
+        assert(!phaseInfo.transition(ExecutionPhase.EXECUTING, ExecutionPhase.ABORTED))
+        assert(phaseInfo.phase == ExecutionPhase.COMPLETED)
+
+        var failed = false
+        try {
+            phaseInfo.transition(ExecutionPhase.COMPLETED, ExecutionPhase.EXECUTING)
+        } catch (ex: IllegalArgumentException) {
+            failed = true
+        }
+        assert(failed)
+    }
+
+    @Test
+    fun awaitChange() {
+        val phaseInfo = PhaseInfo("test", ExecutionPhase.QUEUED)
+        val changed = phaseInfo.awaitChange(ExecutionPhase.QUEUED)
+        assert(!changed.isDone)
+        phaseInfo.transition(ExecutionPhase.QUEUED, ExecutionPhase.EXECUTING)
+        assert(changed.get(1, TimeUnit.SECONDS) == ExecutionPhase.EXECUTING)
+
+        // Already changed
+        val alreadyChanged = phaseInfo.awaitChange(ExecutionPhase.QUEUED)
+        assert(alreadyChanged.isDone)
+    }
+
+    @Test
+    fun failingListener() {
+        val phaseInfo = PhaseInfo("test", ExecutionPhase.QUEUED)
+        phaseInfo.addListener { throw RejectedExecutionException("Stopped") }
+        val changed = phaseInfo.awaitChange(ExecutionPhase.QUEUED)
+        assert(phaseInfo.transition(ExecutionPhase.QUEUED, ExecutionPhase.EXECUTING))
+        assert(changed.isDone)
+    }
+}
@@ -0,0 +1,88 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.lsst.dax.albuquery
+
+import com.facebook.presto.sql.parser.ParsingOptions
+import com.facebook.presto.sql.parser.SqlParser
+import com.facebook.presto.sql.tree.Query
+import org.junit.Test
+import org.lsst.dax.albuquery.dao.MetaservCacheTest
+import org.lsst.dax.albuquery.rewrite.QservSqlFormatter
+
+class QueryCacheTest {
+
+    @Test
+    fun normalizeWhitespace() {
+        val query = "  SELECT  ra,\n\tdecl\r\nFROM W13.Object   WHERE  deepSourceId = 1 "
+        assert(QueryCache.normalizeQuery(query) == "SELECT ra, decl FROM W13.Object WHERE deepSourceId = 1")
+    }
+
+    @Test
+    fun normalizeKeepsQuotedText() {
+        val query = "SELECT \"a  b\" FROM  t WHERE name = 'x   y' AND  c = 'd''  e'"
+        assert(QueryCache.normalizeQuery(query) ==
+            "SELECT \"a  b\" FROM t WHERE name = 'x   y' AND c = 'd''  e'")
+        // A backslash doesn't escape the quote, so the string ends there
+        val backslash = "SELECT a FROM t WHERE a = 'x\\'  AND  b = '  c  '"
+        assert(QueryCache.normalizeQuery(backslash) == "SELECT a FROM t WHERE a = 'x\\' AND b = '  c  '")
+    }
+
+    @Test
+    fun normalizeKeepsComments() {
+        val query = "SELECT  a FROM t  -- a  comment\n  WHERE x=1 /*  b\n */  AND y=2"
+        assert(QueryCache.normalizeQuery(query) == "SELECT a FROM t -- a  comment\nWHERE x=1 /*  b\n */ AND y=2")
+    }
+
+    @Test
+    fun cacheHitsAndMisses() {
+        val dao = MetaservCacheTest.CountingDAO()
+        val cache = QueryCache()
+        val query = cache.prepare(dao, "SELECT ra FROM W13.Object WHERE a = 'x\\' AND b = '  c  '")
+        assert(cache.prepare(dao, "SELECT  ra\nFROM W13.Object  WHERE a = 'x\\' AND b = '  c  '") === query)
+        assert(cache.hitCount == 1L)
+
+        val spaced = cache.prepare(dao, "SELECT ra FROM W13.Object WHERE a = 'x\\' AND b = ' c '")
+        assert(spaced !== query)
+        assert(spaced.sql.contains("' c '"))
+
+        val filtered = cache.prepare(dao, "SELECT ra FROM W13.Object -- n\nWHERE x = 1")
+        val unfiltered = cache.prepare(dao, "SELECT ra FROM W13.Object -- n WHERE x = 1")
+        assert(filtered !== unfiltered)
+        assert(filtered.sql.contains("WHERE"))
+        assert(!unfiltered.sql.contains("WHERE"))
+        assert(cache.hitCount == 1L)
+        assert(cache.missCount == 4L)
+    }
+
+    @Test
+    fun limitIsReplaced() {
+        val options = ParsingOptions(ParsingOptions.DecimalLiteralTreatment.AS_DOUBLE)
+        val query = SqlParser().createStatement("SELECT ra FROM W13.Object LIMIT 100", options) as Query
+        assert(limitOf(query) == 100L)
+        val limited = withLimit(query, 11)
+        assert(limitOf(limited) == 11L)
+        assert(QservSqlFormatter.format(limited).endsWith("LIMIT 11"))
+        val unlimited = SqlParser().createStatement("SELECT ra FROM W13.Object", options) as Query
+        assert(limitOf(unlimited) == null)
+    }
+}
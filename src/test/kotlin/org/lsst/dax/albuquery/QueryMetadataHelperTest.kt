@@ -24,6 +24,8 @@ package org.lsst.dax.albuquery
 
 import com.facebook.presto.sql.parser.ParsingOptions
 import com.facebook.presto.sql.parser.SqlParser
+import com.facebook.presto.sql.tree.Query
+import com.facebook.presto.sql.tree.QuerySpecification
 import org.junit.Test
 import org.lsst.dax.albuquery.model.metaserv.Column
 import org.lsst.dax.albuquery.model.metaserv.Table
@@ -161,6 +163,32 @@ class QueryMetadataHelperTest {
         assert(metadata[0].unit == "ergs")
     }
 
+    @Test
+    fun schemaMetadataFromMetaserv() {
+        var metadata = getSchemaMetadata("SELECT * FROM test")!!
+        assert(metadata.map { it.name } == listOf("foo", "bar"))
+        assert(metadata[0].jdbcType == JDBCType.DOUBLE)
+        assert(metadata[1].jdbcType == JDBCType.REAL)
+
+        metadata = getSchemaMetadata("SELECT a.bar z, Foo FROM test a")!!
+        assert(metadata.map { it.name } == listOf("z", "foo"))
+        assert(metadata[0].unit == "jansky")
+        assert(metadata[1].unit == "ergs")
+
+        // Expressions and unknown columns need the database
+        assert(getSchemaMetadata("SELECT foo + 1 FROM test") == null)
+        assert(getSchemaMetadata("SELECT baz FROM test") == null)
+    }
+
+    private fun getSchemaMetadata(query: String): List<ColumnMetadata>? {
+        val stmt = SqlParser().createStatement(query, ParsingOptions())
+        val analysis = Analyzer.QueryAnalyzer().analyze(stmt)
+        val parsedTableToMetaserv = linkedMapOf<ParsedTable, Pair<Table, List<Column>>>()
+        parsedTableToMetaserv[analysis.tables[0]] = metaservColumns
+        val selectItemCount = ((stmt as Query).queryBody as QuerySpecification).select.selectItems.size
+        return QueryMetadataHelper(analysis).schemaMetadata(selectItemCount, parsedTableToMetaserv)
+    }
+
     private fun getMetadata(
         query: String,
         jdbcColumnMetadata: LinkedHashMap<String, JdbcColumnMetadata>
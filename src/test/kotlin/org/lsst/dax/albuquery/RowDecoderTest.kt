@@ -0,0 +1,64 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.lsst.dax.albuquery
+
+import org.junit.Test
+import java.io.StringWriter
+import java.sql.DriverManager
+import java.sql.JDBCType
+
+class RowDecoderTest {
+
+    @Test
+    fun decodeIntoBatch() {
+        val conn = DriverManager.getConnection("jdbc:sqlite::memory:")
+        val stmt = conn.createStatement()
+        stmt.executeUpdate("CREATE TABLE test (foo BIGINT, bar DOUBLE, baz VARCHAR(16))")
+        stmt.executeUpdate("INSERT INTO test VALUES (42, 1.5, 'abc')")
+        stmt.executeUpdate("INSERT INTO test VALUES (NULL, NULL, NULL)")
+
+        val columns = arrayListOf<JdbcColumnMetadata>()
+        columns.add(JdbcColumnMetadata("foo", null, "test", 1, "BIGINT", null, null, 1, JDBCType.BIGINT))
+        columns.add(JdbcColumnMetadata("bar", null, "test", 2, "DOUBLE", null, null, 1, JDBCType.DOUBLE))
+        columns.add(JdbcColumnMetadata("baz", null, "test", 3, "VARCHAR", null, null, 1, JDBCType.VARCHAR))
+        val decoder = RowDecoder(columns)
+        val batch = decoder.newBatch(4)
+
+        val rs = stmt.executeQuery("SELECT foo, bar, baz FROM test ORDER BY rowid")
+        while (rs.next()) {
+            decoder.decodeInto(rs, batch)
+        }
+        assert(batch.size == 2)
+        assert(batch.columns[0] is LongVector)
+        assert(batch.columns[1] is DoubleVector)
+        assert(batch.columns[2] is StringVector)
+        assert(batch.row(0) == listOf<Any?>(42L, 1.5, "abc"))
+        assert(batch.row(1) == listOf<Any?>(null, null, null))
+
+        val text = StringWriter()
+        batch.columns[2].writeText(text, 0)
+        batch.columns[2].writeText(text, 1)
+        assert(text.toString() == "abc")
+        conn.close()
+    }
+}
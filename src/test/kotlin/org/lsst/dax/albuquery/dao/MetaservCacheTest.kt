@@ -0,0 +1,104 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.lsst.dax.albuquery.dao
+
+import org.junit.Test
+import org.lsst.dax.albuquery.model.metaserv.Column
+import org.lsst.dax.albuquery.model.metaserv.Database
+import org.lsst.dax.albuquery.model.metaserv.Schema
+import org.lsst.dax.albuquery.model.metaserv.Table
+
+class MetaservCacheTest {
+
+    class CountingDAO : MetaservDAO {
+        var calls = 0
+
+        override fun findDatabaseByName(name: String): Database? {
+            calls++
+            return if (name == "W13") Database(1, name, null, "localhost", 4040) else null
+        }
+
+        override fun findDefaultSchemaByDatabaseId(dbId: Int): Schema? {
+            calls++
+            return Schema(2, dbId, "wise_00", null, true)
+        }
+
+        override fun findTablesBySchemaId(schemaId: Int): List<Table>? {
+            calls++
+            return listOf(Table(3, schemaId, null, "Object", null))
+        }
+
+        override fun findColumnsByTableId(talbleId: Int): List<Column> {
+            calls++
+            return listOf()
+        }
+
+        override fun findTablesByDatabaseName(databaseName: String, tableNames: List<String>): List<Table> {
+            calls++
+            return tableNames.filter { it != "Missing" }.mapIndexed { i, name ->
+                Table(i, 2, "wise_00", name, null)
+            }
+        }
+
+        override fun findColumnsByTableIds(tableIds: List<Int>): List<Column> {
+            calls++
+            return tableIds.map { Column(10 + it, it, null, "id", null, 1, null, null, "long", false, null) }
+        }
+    }
+
+    @Test
+    fun lookupsAreCached() {
+        val dao = CountingDAO()
+        val cache = MetaservCache(dao)
+        for (i in 1..3) {
+            assert(cache.findDatabaseByName("W13")?.host == "localhost")
+            assert(cache.findDatabaseByName("missing") == null)
+            assert(cache.findDefaultSchemaByDatabaseId(1)?.name == "wise_00")
+            assert(cache.findTablesBySchemaId(2)?.size == 1)
+        }
+        assert(dao.calls == 4)
+
+        cache.invalidateAll()
+        cache.findDatabaseByName("W13")
+        assert(dao.calls == 5)
+    }
+
+    @Test
+    fun batchedLookupsLoadOnlyMissingTables() {
+        val dao = CountingDAO()
+        val cache = MetaservCache(dao)
+        val first = cache.findTablesWithColumns("W13", listOf("Object", "Source"))
+        // One query for the tables, one for their columns
+        assert(dao.calls == 2)
+        assert(first.keys == setOf("Object", "Source"))
+        assert(first["Object"]!!.second.single().tableName == "Object")
+
+        val second = cache.findTablesWithColumns("W13", listOf("Object", "Missing"))
+        // Only the missing table is looked up, and it has no columns to load
+        assert(dao.calls == 3)
+        assert(second.keys == setOf("Object"))
+
+        cache.findTablesWithColumns("W13", listOf("Object", "Source", "Missing"))
+        assert(dao.calls == 3)
+    }
+}
@@ -0,0 +1,47 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.lsst.dax.albuquery.resources
+
+import org.junit.Test
+
+class FileRegionTest {
+
+    @Test
+    fun parseRanges() {
+        assert(FileRegion.rangeOf(null, 100) == null)
+        assert(FileRegion.rangeOf("bytes=0-9", 100) == 0L..9L)
+        assert(FileRegion.rangeOf("bytes=90-", 100) == 90L..99L)
+        assert(FileRegion.rangeOf("bytes=90-200", 100) == 90L..99L)
+        assert(FileRegion.rangeOf("bytes=-10", 100) == 90L..99L)
+        assert(FileRegion.rangeOf("bytes=-200", 100) == 0L..99L)
+
+        // Unsatisfiable
+        assert(FileRegion.rangeOf("bytes=100-", 100)?.isEmpty() == true)
+        assert(FileRegion.rangeOf("bytes=-0", 100)?.isEmpty() == true)
+
+        // Ignored, the whole file is sent
+        assert(FileRegion.rangeOf("bytes=0-9,20-29", 100) == null)
+        assert(FileRegion.rangeOf("bytes=9-0", 100) == null)
+        assert(FileRegion.rangeOf("bytes=a-9", 100) == null)
+        assert(FileRegion.rangeOf("items=0-9", 100) == null)
+    }
+}
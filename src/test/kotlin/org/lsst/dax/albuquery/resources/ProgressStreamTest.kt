@@ -0,0 +1,81 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.lsst.dax.albuquery.resources
+
+import io.dropwizard.db.DataSourceFactory
+import org.glassfish.jersey.server.ChunkedOutput
+import org.junit.Test
+import org.lsst.dax.albuquery.AlbuqueryConfiguration
+import org.lsst.dax.albuquery.CONFIG
+import org.lsst.dax.albuquery.ExecutionPhase
+import org.lsst.dax.albuquery.dao.MetaservCacheTest
+import org.lsst.dax.albuquery.prepareQuery
+import org.lsst.dax.albuquery.tasks.QueryProgress
+import org.lsst.dax.albuquery.tasks.QueryTask
+import java.nio.file.Files
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit
+
+class ProgressStreamTest {
+
+    class RecordingOutput : ChunkedOutput<String>(String::class.java) {
+        val events: MutableList<String> = Collections.synchronizedList(arrayListOf<String>())
+        val closed = CountDownLatch(1)
+
+        override fun write(chunk: String) {
+            events.add(chunk)
+        }
+
+        override fun close() {
+            closed.countDown()
+        }
+    }
+
+    @Test
+    fun eventFormat() {
+        val progress = QueryProgress(ExecutionPhase.EXECUTING, 10, 200, 5.0, 2000)
+        assert(ProgressStream.eventOf(progress) == "event: progress\n" +
+            "data: {\"phase\":\"EXECUTING\",\"rowsFetched\":10,\"bytesWritten\":200," +
+            "\"rowsPerSecond\":5.0,\"elapsedMillis\":2000}\n\n")
+    }
+
+    @Test
+    fun closedOnceFinished() {
+        val basePath = Files.createTempDirectory("progresstest")
+        CONFIG = AlbuqueryConfiguration(DataSourceFactory(), listOf(), basePath.toString())
+        try {
+            val dao = MetaservCacheTest.CountingDAO()
+            val task = QueryTask(dao, "finished", prepareQuery(dao, "SELECT ra FROM W13.Object"), null)
+            task.abort()
+            val output = RecordingOutput()
+            ProgressStream(task, output, 10, Executor { it.run() }).start()
+            assert(output.closed.await(5, TimeUnit.SECONDS))
+            assert(output.events.size == 1)
+            assert(output.events[0].contains("\"phase\":\"ABORTED\""))
+        } finally {
+            CONFIG = null
+            basePath.toFile().deleteRecursively()
+        }
+    }
+}
@@ -22,15 +22,96 @@
 
 package org.lsst.dax.albuquery.results
 
+import org.junit.Ignore
 import org.junit.Test
 import org.lsst.dax.albuquery.JdbcColumnMetadata
 import java.nio.file.Files
 import java.sql.JDBCType
+import java.sql.SQLException
 
 class SqliteResultsTest {
 
     @Test
     fun createDatabase() {
+        val columns = testColumns()
+
+        val tmpdir = Files.createTempDirectory("sqlitetest")
+        val resultFilePath = tmpdir.resolve("test.db")
+        val sqliteUrl = "jdbc:sqlite:" + resultFilePath
+
+        val changeLog = SqliteResult.buildChangeLog(columns)
+        SqliteResult.initializeDatabase(changeLog, sqliteUrl)
+    }
+
+    @Test
+    fun createDatabaseFromTemplate() {
+        val tmpdir = Files.createTempDirectory("sqlitetest")
+        val conn = SqliteResult.createResultDatabase(tmpdir.resolve("test.db"), testColumns())
+        val tables = arrayListOf<String>()
+        val rs = conn.createStatement().executeQuery("SELECT name FROM sqlite_master WHERE type = 'table'")
+        while (rs.next()) {
+            tables.add(rs.getString(1))
+        }
+        conn.close()
+        assert("result" in tables)
+        assert("meta\$schema" in tables)
+        assert("meta\$tables" in tables)
+        assert("meta\$columns" in tables)
+    }
+
+    @Test
+    fun unfinishedWriterGivesUp() {
+        val tmpdir = Files.createTempDirectory("sqlitetest")
+        val resultFile = tmpdir.resolve("test.db")
+        val conn = SqliteResult.createResultDatabase(resultFile, testColumns())
+        val stmt = conn.prepareStatement("INSERT INTO result VALUES (?, ?, ?)")
+        val writer = SqliteResultWriter(conn, stmt, resultFile, idleTimeoutMs = 100)
+        writer.start()
+        // Nothing is ever written, the writer closes the database on its own
+        val deadline = System.currentTimeMillis() + 5000
+        while (!conn.isClosed && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        assert(conn.isClosed)
+        try {
+            writer.finish()
+            assert(false)
+        } catch (ex: SQLException) {
+        }
+        tmpdir.toFile().deleteRecursively()
+    }
+
+    /*
+    * Per-query setup time, Liquibase against the template fast path.
+    * A benchmark rather than a test, run it by hand.
+    */
+    @Ignore
+    @Test
+    fun benchmarkInitialization() {
+        val columns = testColumns()
+        val iterations = 20
+        val tmpdir = Files.createTempDirectory("sqlitebench")
+        // Warm up both paths (and build the template)
+        SqliteResult.initializeDatabase(SqliteResult.buildChangeLog(columns),
+            "jdbc:sqlite:" + tmpdir.resolve("warmup-liquibase.db"))
+        SqliteResult.createResultDatabase(tmpdir.resolve("warmup-template.db"), columns).close()
+
+        var start = System.nanoTime()
+        for (i in 1..iterations) {
+            val changeLog = SqliteResult.buildChangeLog(columns)
+            SqliteResult.initializeDatabase(changeLog, "jdbc:sqlite:" + tmpdir.resolve("liquibase-$i.db"))
+        }
+        val liquibaseMs = (System.nanoTime() - start) / 1e6 / iterations
+
+        start = System.nanoTime()
+        for (i in 1..iterations) {
+            SqliteResult.createResultDatabase(tmpdir.resolve("template-$i.db"), columns).close()
+        }
+        val templateMs = (System.nanoTime() - start) / 1e6 / iterations
+        println("Result database setup: liquibase=${liquibaseMs}ms template=${templateMs}ms per query")
+    }
+
+    private fun testColumns(): List<JdbcColumnMetadata> {
         val columns = arrayListOf<JdbcColumnMetadata>()
         columns.add(
             JdbcColumnMetadata("foo", "result", "test", 1, "integer", null, null, 1, JDBCType.BIGINT)
@@ -41,12 +122,6 @@ class SqliteResultsTest {
         columns.add(
             JdbcColumnMetadata("baz", "result", "test", 3, "double", null, null, 1, JDBCType.DOUBLE)
         )
-
-        val tmpdir = Files.createTempDirectory("sqlitetest")
-        val resultFilePath = tmpdir.resolve("test.db")
-        val sqliteUrl = "jdbc:sqlite:" + resultFilePath
-
-        val changeLog = SqliteResult.buildChangeLog(columns)
-        SqliteResult.initializeDatabase(changeLog, sqliteUrl)
+        return columns
     }
 }
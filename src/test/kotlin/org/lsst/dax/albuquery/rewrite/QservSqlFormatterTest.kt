@@ -0,0 +1,63 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.lsst.dax.albuquery.rewrite
+
+import com.facebook.presto.sql.parser.ParsingOptions
+import com.facebook.presto.sql.parser.SqlParser
+import org.junit.Test
+
+class QservSqlFormatterTest {
+
+    private fun format(sql: String): String {
+        val stmt = SqlParser().createStatement(sql,
+            ParsingOptions(ParsingOptions.DecimalLiteralTreatment.AS_DOUBLE))
+        return QservSqlFormatter.format(stmt)
+    }
+
+    @Test
+    fun identifiersAndLiterals() {
+        val sql = format("SELECT o.ra, \"Weird Name\" AS w FROM wise_00.Object o " +
+            "WHERE o.flag = true AND o.name = 'true \\\\ it''s' LIMIT 10")
+        println(sql)
+        assert(sql == "SELECT o.ra, `Weird Name` AS w FROM wise_00.Object AS o " +
+            "WHERE (o.flag = 1) AND (o.name = 'true \\\\\\\\ it''s') LIMIT 10")
+    }
+
+    @Test
+    fun areaspecComesFirst() {
+        val sql = format("SELECT objectId FROM Object " +
+            "WHERE (mag < 20 OR mag IS NULL) AND qserv_areaspec_box(0, -1.5, 10, 1.5)")
+        println(sql)
+        assert(sql == "SELECT objectId FROM Object " +
+            "WHERE qserv_areaspec_box(0, -1.5, 10, 1.5) AND ((mag < 20) OR (mag IS NULL))")
+    }
+
+    @Test
+    fun joinsAndSubqueries() {
+        val sql = format("SELECT count(*) FROM Object o JOIN Source s ON o.id = s.objectId, Filter f " +
+            "WHERE o.id IN (SELECT id FROM Other) ORDER BY 1 DESC")
+        println(sql)
+        assert(sql == "SELECT count(*) FROM Object AS o INNER JOIN Source AS s ON (o.id = s.objectId), " +
+            "Filter AS f WHERE (o.id IN (SELECT id FROM Other)) ORDER BY 1 DESC")
+    }
+}
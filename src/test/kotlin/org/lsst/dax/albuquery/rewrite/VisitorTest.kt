@@ -24,8 +24,11 @@ package org.lsst.dax.albuquery.rewrite
 
 import com.facebook.presto.sql.parser.ParsingOptions
 import com.facebook.presto.sql.parser.SqlParser
+import com.facebook.presto.sql.tree.Query
+import com.facebook.presto.sql.tree.QuerySpecification
 
 import org.junit.Test
+import org.lsst.dax.albuquery.Analyzer
 
 class VisitorTest {
 
@@ -44,4 +47,38 @@ class VisitorTest {
         stmt = SqlParser().createStatement(sql, ParsingOptions())
         println(rewriter.process(stmt, null))
     }
+
+    @Test
+    fun singlePassAnalysis() {
+        val sql = "SELECT o.ra, s.* FROM \"//lsst:4040\".\"Sch\".Obj o, \"//lsst:4040\".\"Sch\".Src s " +
+            "WHERE o.id IN (SELECT id FROM \"//lsst:4040\".\"Sch\".Other) AND o.flag = true"
+        val stmt = SqlParser().createStatement(sql, ParsingOptions())
+        val analysis = Analyzer.QueryAnalyzer().analyze(stmt)
+        // Tables keep their instance names, but only outermost tables are extracted
+        assert(analysis.tables.map { it.qualifiedName.originalParts.size } == listOf(3, 3))
+        assert(analysis.tables.map { it.alias } == listOf("o", "s"))
+        assert(analysis.columns.map { it.identifier } == listOf("ra", "*"))
+        assert(analysis.allColumnTables.single().toString() == "s")
+        assert(analysis.hasBooleanLiterals)
+        // Every table of the rewritten statement lost its instance name
+        assert(!analysis.statement.toString().contains("//lsst:4040"))
+    }
+
+    @Test
+    fun unchangedSubtreesAreReused() {
+        val ids = (1..1000).joinToString(",")
+        val sql = "SELECT a FROM \"//lsst:4040\".\"Sch\".Tab WHERE a + 1 > 2 AND id IN ($ids)"
+        val stmt = SqlParser().createStatement(sql, ParsingOptions()) as Query
+        val rewritten = TableNameRewriter().process(stmt, null) as Query
+        val spec = stmt.queryBody as QuerySpecification
+        val rewrittenSpec = rewritten.queryBody as QuerySpecification
+        // Only the table and its ancestors are recreated
+        assert(rewritten !== stmt)
+        assert(rewrittenSpec.from.get() !== spec.from.get())
+        assert(rewrittenSpec.select === spec.select)
+        assert(rewrittenSpec.where.get() === spec.where.get())
+
+        // Nothing to rewrite the second time
+        assert(TableNameRewriter().process(rewritten, null) === rewritten)
+    }
 }
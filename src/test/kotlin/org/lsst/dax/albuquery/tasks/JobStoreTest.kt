@@ -0,0 +1,108 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.lsst.dax.albuquery.tasks
+
+import org.jdbi.v3.core.Jdbi
+import org.jdbi.v3.core.kotlin.KotlinPlugin
+import org.jdbi.v3.sqlobject.SqlObjectPlugin
+import org.jdbi.v3.sqlobject.kotlin.KotlinSqlObjectPlugin
+import org.junit.Test
+import org.lsst.dax.albuquery.ExecutionPhase
+import org.lsst.dax.albuquery.JobStoreConfiguration
+import org.lsst.dax.albuquery.dao.HistoryDAO
+import org.lsst.dax.albuquery.model.history.Job
+import java.nio.file.Files
+import java.nio.file.Path
+
+class JobStoreTest {
+
+    private fun jobDatabase(basePath: Path): Jdbi {
+        val jdbi = Jdbi.create("jdbc:sqlite:" + basePath.resolve(JobStore.JOB_DATABASE))
+        jdbi.installPlugin(SqlObjectPlugin())
+        jdbi.installPlugin(KotlinPlugin())
+        jdbi.installPlugin(KotlinSqlObjectPlugin())
+        return jdbi
+    }
+
+    @Test
+    fun recoverAndDeleteJobs() {
+        val basePath = Files.createTempDirectory("jobstoretest")
+        val history = jobDatabase(basePath).onDemand(HistoryDAO::class.java)
+        history.createJobTable()
+        history.saveJob(Job("running", "anonymous", "EXECUTING", "SELECT 1", "", "", 0, 1, null, null, Long.MAX_VALUE))
+        history.saveJob(Job("completed", "anonymous", "COMPLETED", "SELECT 2", "", "", 0, 1, 2, null, Long.MAX_VALUE))
+        Files.createDirectory(basePath.resolve("completed"))
+
+        val store = JobStore(basePath, history, JobStoreConfiguration())
+        store.start()
+        try {
+            // Interrupted by the restart
+            assert(store.findPhaseInfo("running")?.phase == ExecutionPhase.ERROR)
+            assert(store.findJob("running")?.finishedAt != null)
+
+            val phaseInfo = store.findPhaseInfo("completed")!!
+            assert(phaseInfo.phase == ExecutionPhase.COMPLETED)
+            assert(phaseInfo.parameters == "SELECT 2")
+            assert(store.findTask("completed") == null)
+
+            assert(store.delete("completed"))
+            assert(!Files.exists(basePath.resolve("completed")))
+            assert(!store.delete("unknown"))
+        } finally {
+            store.stop()
+        }
+        assert(history.findJob("completed") == null)
+    }
+
+    @Test
+    fun migrateJobTable() {
+        val basePath = Files.createTempDirectory("jobstoretest")
+        val jdbi = jobDatabase(basePath)
+        // The job table before jobs had access and destruction times
+        jdbi.useHandle<Exception> {
+            it.execute("create table job (" +
+                "query_id text primary key, owner text not null, phase text not null, parameters text not null, " +
+                "format text not null, error_file text not null, execution_duration integer not null, " +
+                "created_at integer not null, finished_at integer)")
+            it.execute("insert into job values ('old', 'anonymous', 'COMPLETED', 'SELECT 1', '', '', 0, 1000, 2000)")
+        }
+        val history = jdbi.onDemand(HistoryDAO::class.java)
+        val config = JobStoreConfiguration()
+        val store = JobStore(basePath, history, config)
+        store.start()
+        try {
+            val job = store.findJob("old")!!
+            assert(job.accessedAt == null)
+            assert(job.destructionAt == 1000 + config.ttlSeconds * 1000)
+            history.saveJob(job.copy(queryId = "new"))
+            history.touchJob("new", 3000)
+            assert(history.findJob("new")?.accessedAt == 3000L)
+        } finally {
+            store.stop()
+        }
+        // Migrating again does nothing
+        val restarted = JobStore(basePath, history, config)
+        restarted.start()
+        restarted.stop()
+    }
+}
@@ -0,0 +1,126 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.lsst.dax.albuquery.tasks
+
+import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class QuerySchedulerTest {
+
+    private fun blockingTask(name: String, started: MutableList<String>, release: CountDownLatch): Callable<String> {
+        return Callable {
+            started.add(name)
+            release.await(5, TimeUnit.SECONDS)
+            name
+        }
+    }
+
+    @Test
+    fun limitsQueriesPerBackend() {
+        val scheduler = QueryScheduler(maxConcurrentQueries = 4, maxQueriesPerBackend = 1)
+        val started = Collections.synchronizedList(arrayListOf<String>())
+        val releaseA1 = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val a1 = scheduler.submit(blockingTask("a1", started, releaseA1), "user", "a")
+        val a2 = scheduler.submit(blockingTask("a2", started, release), "user", "a")
+        val b1 = scheduler.submit(blockingTask("b1", started, release), "user", "b")
+        assert(scheduler.queueDepth == 1)
+        assert(scheduler.runningQueries == 2)
+
+        releaseA1.countDown()
+        assert(a1.get(5, TimeUnit.SECONDS) == "a1")
+        release.countDown()
+        assert(a2.get(5, TimeUnit.SECONDS) == "a2")
+        assert(b1.get(5, TimeUnit.SECONDS) == "b1")
+        assert(scheduler.queueDepth == 0)
+        scheduler.stop()
+    }
+
+    @Test
+    fun dispatchesFairlyAcrossOwners() {
+        val scheduler = QueryScheduler(maxConcurrentQueries = 1, maxQueriesPerBackend = 1)
+        val started = Collections.synchronizedList(arrayListOf<String>())
+        val release = CountDownLatch(1)
+        val futures = arrayListOf(
+            scheduler.submit(blockingTask("x1", started, release), "x", "db"),
+            scheduler.submit(blockingTask("x2", started, release), "x", "db"),
+            scheduler.submit(blockingTask("x3", started, release), "x", "db"),
+            scheduler.submit(blockingTask("y1", started, release), "y", "db")
+        )
+        release.countDown()
+        for (future in futures) {
+            future.get(5, TimeUnit.SECONDS)
+        }
+        // y was never served, so it goes ahead of x's backlog
+        assert(started == listOf("x1", "y1", "x2", "x3"))
+        scheduler.stop()
+    }
+
+    @Test
+    fun cancelWhileQueued() {
+        val scheduler = QueryScheduler(maxConcurrentQueries = 1, maxQueriesPerBackend = 1)
+        val started = Collections.synchronizedList(arrayListOf<String>())
+        val release = CountDownLatch(1)
+        val first = scheduler.submit(blockingTask("first", started, release), "user", "db")
+        val second = scheduler.submit(blockingTask("second", started, release), "user", "db")
+        assert(second.cancel(false))
+        assert(scheduler.queueDepth == 0)
+        release.countDown()
+        first.get(5, TimeUnit.SECONDS)
+        assert(started == listOf("first"))
+        scheduler.stop()
+    }
+
+    @Test
+    fun cancelWhileRunningKeepsSlot() {
+        val scheduler = QueryScheduler(maxConcurrentQueries = 1, maxQueriesPerBackend = 1)
+        val started = Collections.synchronizedList(arrayListOf<String>())
+        val firstStarted = CountDownLatch(1)
+        val releaseFirst = CountDownLatch(1)
+        val first = scheduler.submit(Callable {
+            firstStarted.countDown()
+            // Ignores interruption, like a worker blocked on the backend
+            while (releaseFirst.count > 0) {
+                try {
+                    releaseFirst.await()
+                } catch (ex: InterruptedException) {
+                }
+            }
+            "first"
+        }, "user", "db")
+        val second = scheduler.submit(blockingTask("second", started, CountDownLatch(0)), "user", "db")
+        assert(firstStarted.await(5, TimeUnit.SECONDS))
+        assert(first.cancel(true))
+        // The worker is still inside the first task
+        assert(scheduler.runningQueries == 1)
+        assert(scheduler.queueDepth == 1)
+        assert(started.isEmpty())
+
+        releaseFirst.countDown()
+        assert(second.get(5, TimeUnit.SECONDS) == "second")
+        scheduler.stop()
+    }
+}
@@ -0,0 +1,202 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.lsst.dax.albuquery.tasks
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import io.dropwizard.db.DataSourceFactory
+import org.apache.tomcat.jdbc.pool.DataSource
+import org.apache.tomcat.jdbc.pool.PoolProperties
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.lsst.dax.albuquery.AlbuqueryConfiguration
+import org.lsst.dax.albuquery.CONFIG
+import org.lsst.dax.albuquery.ExecutionPhase
+import org.lsst.dax.albuquery.MEMORY_GOVERNOR
+import org.lsst.dax.albuquery.MemoryGovernor
+import org.lsst.dax.albuquery.PreparedQuery
+import org.lsst.dax.albuquery.SERVICE_ACCOUNT_CONNECTIONS
+import org.lsst.dax.albuquery.ServiceAccountConnections
+import org.lsst.dax.albuquery.dao.MetaservCacheTest
+import org.lsst.dax.albuquery.prepareQuery
+import org.lsst.dax.albuquery.resources.Async
+import java.io.IOException
+import java.io.Writer
+import java.net.URI
+import java.nio.file.FileAlreadyExistsException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.sql.Connection
+import java.sql.DriverManager
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class QueryTaskTest {
+
+    // Hands out connections to a SQLite database from a single pool
+    class SqliteConnections(url: String) : ServiceAccountConnections(listOf()) {
+        val pool = DataSource(PoolProperties().also {
+            it.url = url
+            it.driverClassName = "org.sqlite.JDBC"
+            it.maxActive = 1
+        })
+
+        override fun getConnection(connectionUri: URI): Connection = pool.connection
+    }
+
+    // Fails to write results, but not the error
+    class FailingObjectMapper : ObjectMapper() {
+        override fun writeValue(w: Writer, value: Any?) {
+            if (value is Async.AsyncResponse) {
+                throw IOException("Disk full")
+            }
+            super.writeValue(w, value)
+        }
+    }
+
+    private val dao = MetaservCacheTest.CountingDAO()
+    private lateinit var basePath: Path
+
+    @Before
+    fun setUp() {
+        basePath = Files.createTempDirectory("querytasktest")
+        CONFIG = AlbuqueryConfiguration(DataSourceFactory(), listOf(), basePath.toString())
+        MEMORY_GOVERNOR = MemoryGovernor(1024 * 1024)
+    }
+
+    @After
+    fun tearDown() {
+        CONFIG = null
+        basePath.toFile().deleteRecursively()
+    }
+
+    private fun newTask(queryId: String, executionDuration: Long = 0): QueryTask {
+        val task = QueryTask(dao, queryId, prepareQuery(dao, "SELECT ra FROM W13.Object"), null,
+            executionDuration = executionDuration)
+        task.phaseInfo.transition(ExecutionPhase.PENDING, ExecutionPhase.QUEUED)
+        return task
+    }
+
+    @Test
+    fun abortWhileQueued() {
+        val scheduler = QueryScheduler(maxConcurrentQueries = 1, maxQueriesPerBackend = 1)
+        val release = CountDownLatch(1)
+        scheduler.submit(Callable { release.await(5, TimeUnit.SECONDS) }, "other", "localhost:4040")
+        val task = newTask("queued")
+        task.completion = scheduler.submit(task)
+        assert(scheduler.queueDepth == 1)
+
+        assert(task.abort())
+        assert(!task.abort())
+        assert(task.phaseInfo.phase == ExecutionPhase.ABORTED)
+        assert(task.finished.isDone)
+        assert(task.completion.isCancelled)
+        assert(scheduler.queueDepth == 0)
+        // Never ran, so nothing was written
+        assert(!Files.exists(basePath.resolve("queued")))
+        release.countDown()
+        scheduler.stop()
+    }
+
+    @Test
+    fun abortWhileWaitingForMemory() {
+        // All memory is taken, so the task waits in EXECUTING
+        val reservation = MEMORY_GOVERNOR.reserve("other", MEMORY_GOVERNOR.budgetBytes)
+        val task = newTask("waiting")
+        val worker = Thread { task.call() }
+        worker.start()
+        task.phaseInfo.awaitChange(ExecutionPhase.QUEUED).get(5, TimeUnit.SECONDS)
+
+        assert(task.abort())
+        task.finished.get(5, TimeUnit.SECONDS)
+        assert(task.phaseInfo.phase == ExecutionPhase.ABORTED)
+        worker.join(5000)
+        assert(!worker.isAlive)
+        reservation.close()
+    }
+
+    @Test
+    fun executionDurationWhileWaitingForMemory() {
+        val reservation = MEMORY_GOVERNOR.reserve("other", MEMORY_GOVERNOR.budgetBytes)
+        val task = newTask("slow", executionDuration = 1)
+        val worker = Thread { task.call() }
+        worker.start()
+
+        task.finished.get(5, TimeUnit.SECONDS)
+        assert(task.phaseInfo.phase == ExecutionPhase.ERROR)
+        assert(task.phaseInfo.errorFile.endsWith("error"))
+        worker.join(5000)
+        reservation.close()
+    }
+
+    @Test
+    fun unusableResultDirectory() {
+        Files.createDirectory(basePath.resolve("taken"))
+        val task = newTask("taken", executionDuration = 60)
+        try {
+            task.call()
+            assert(false)
+        } catch (ex: FileAlreadyExistsException) {
+        }
+        assert(task.phaseInfo.phase == ExecutionPhase.ERROR)
+        assert(task.finished.isDone)
+    }
+
+    @Test
+    fun failedWriteReturnsConnection() {
+        val backend = basePath.resolve("backend.db")
+        DriverManager.getConnection("jdbc:sqlite:$backend").use { conn ->
+            conn.createStatement().use {
+                it.execute("CREATE TABLE Object (ra REAL)")
+                it.execute("INSERT INTO Object VALUES (1.0), (2.0)")
+            }
+        }
+        val connections = SqliteConnections("jdbc:sqlite:$backend")
+        SERVICE_ACCOUNT_CONNECTIONS = connections
+        // The backend has no W13 database, so the query runs against the table itself
+        val prepared = prepareQuery(dao, "SELECT ra FROM W13.Object")
+        val query = PreparedQuery(prepared.analysis, prepared.dbUri, "SELECT ra FROM Object")
+        val task = QueryTask(dao, "failing", query, FailingObjectMapper())
+        task.phaseInfo.transition(ExecutionPhase.PENDING, ExecutionPhase.QUEUED)
+
+        try {
+            task.call()
+            assert(false)
+        } catch (ex: IOException) {
+        }
+        assert(task.phaseInfo.phase == ExecutionPhase.ERROR)
+        assert(connections.pool.active == 0)
+        assert(connections.pool.idle == 1)
+        connections.pool.close()
+    }
+
+    @Test
+    fun executionDurationIsCapped() {
+        assert(Async.executionDurationOf(null, 0) == 0L)
+        assert(Async.executionDurationOf(30, 0) == 30L)
+        assert(Async.executionDurationOf(null, 60) == 60L)
+        assert(Async.executionDurationOf(0, 60) == 60L)
+        assert(Async.executionDurationOf(30, 60) == 30L)
+        assert(Async.executionDurationOf(120, 60) == 60L)
+    }
+}
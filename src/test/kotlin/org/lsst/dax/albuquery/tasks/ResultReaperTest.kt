@@ -0,0 +1,85 @@
+/* This file is part of albuquery.
+ *
+ * Developed for the LSST Data Management System.
+ * This product includes software developed by the LSST Project
+ * (https://www.lsst.org).
+ * See the COPYRIGHT file at the top-level directory of this distribution
+ * for details of code ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.lsst.dax.albuquery.tasks
+
+import org.jdbi.v3.core.Jdbi
+import org.jdbi.v3.core.kotlin.KotlinPlugin
+import org.jdbi.v3.sqlobject.SqlObjectPlugin
+import org.jdbi.v3.sqlobject.kotlin.KotlinSqlObjectPlugin
+import org.junit.Test
+import org.lsst.dax.albuquery.JobStoreConfiguration
+import org.lsst.dax.albuquery.ResultQuotaConfiguration
+import org.lsst.dax.albuquery.dao.HistoryDAO
+import org.lsst.dax.albuquery.tasks.ResultReaper.Usage
+import java.nio.file.Files
+import java.util.UUID
+
+class ResultReaperTest {
+
+    @Test
+    fun evictLeastRecentlyUsed() {
+        val usages = listOf(
+            Usage("a1", "alice", lastUsed = 1, bytes = 100, finished = true),
+            Usage("a2", "alice", lastUsed = 3, bytes = 100, finished = true),
+            Usage("a3", "alice", lastUsed = 0, bytes = 100, finished = false),
+            Usage("b1", "bob", lastUsed = 2, bytes = 50, finished = true),
+            Usage("b2", "bob", lastUsed = 4, bytes = 50, finished = true)
+        )
+        assert(ResultReaper.overQuota(usages, 0, 0).isEmpty())
+
+        // Running jobs count towards the quota, but aren't evicted
+        val perOwner = ResultReaper.overQuota(usages, 0, 150).map { it.queryId }
+        assert(perOwner == listOf("a1", "a2"))
+
+        val overall = ResultReaper.overQuota(usages, 250, 0).map { it.queryId }
+        assert(overall == listOf("a1", "b1"))
+
+        val both = ResultReaper.overQuota(usages, 100, 150).map { it.queryId }
+        assert(both == listOf("a1", "a2", "b1", "b2"))
+    }
+
+    @Test
+    fun onlyJobDirectoriesAreOrphans() {
+        assert(ResultReaper.isJobId(UUID.randomUUID().toString()))
+        assert(!ResultReaper.isJobId("shared"))
+        assert(!ResultReaper.isJobId("1-2-3-4-5"))
+
+        val basePath = Files.createTempDirectory("reapertest")
+        val jdbi = Jdbi.create("jdbc:sqlite:" + basePath.resolve(JobStore.JOB_DATABASE))
+        jdbi.installPlugin(SqlObjectPlugin())
+        jdbi.installPlugin(KotlinPlugin())
+        jdbi.installPlugin(KotlinSqlObjectPlugin())
+        val store = JobStore(basePath, jdbi.onDemand(HistoryDAO::class.java), JobStoreConfiguration())
+        store.start()
+        try {
+            val orphan = Files.createDirectory(basePath.resolve(UUID.randomUUID().toString())).toFile()
+            val shared = Files.createDirectory(basePath.resolve("shared")).toFile()
+            orphan.setLastModified(0)
+            shared.setLastModified(0)
+            ResultReaper(basePath, store, ResultQuotaConfiguration()).reap()
+            assert(!orphan.exists())
+            assert(shared.exists())
+        } finally {
+            store.stop()
+        }
+    }
+}